@@ -0,0 +1,81 @@
+package weka.classifiers.meta.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import weka.classifiers.meta.FilterTree;
+import weka.classifiers.meta.SyntheticData;
+import weka.core.SerializationHelper;
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares loading a trained FilterTree from its compact model file with loading it from a Java serialized
+ * file written by SerializationHelper. The setup prints the sizes of both files. PrincipalComponents is left
+ * out, because a tree with that filter cannot be Java serialized. For example
+ * java -jar benchmarks/target/benchmarks.jar CompactModelBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class CompactModelBenchmark {
+
+    @Param({"10000", "50000"})
+    public int numInstances;
+
+    @Param({"10"})
+    public int numAttributes;
+
+    @Param({"3"})
+    public int numClasses;
+
+    @Param({"weka.filters.AllFilter",
+            "weka.filters.unsupervised.attribute.RandomProjection"})
+    public String filter;
+
+    protected File m_CompactFile;
+
+    protected File m_SerializedFile;
+
+    @Setup
+    public void setup() throws Exception {
+        FilterTree tree = new FilterTree();
+        tree.setOptions(new String[]{"-F", filter});
+        tree.buildClassifier(SyntheticData.create(numInstances, numAttributes, numClasses, 1));
+
+        m_CompactFile = File.createTempFile("filtertree", ".ftc");
+        m_SerializedFile = File.createTempFile("filtertree", ".model");
+        tree.writeCompactModel(m_CompactFile);
+        SerializationHelper.write(m_SerializedFile.getPath(), tree);
+        System.out.println("compact model: " + m_CompactFile.length() + " bytes, serialized: "
+                + m_SerializedFile.length() + " bytes");
+    }
+
+    @TearDown
+    public void tearDown() {
+        m_CompactFile.delete();
+        m_SerializedFile.delete();
+    }
+
+    @Benchmark
+    public FilterTree readCompactModel() throws Exception {
+        return FilterTree.readCompactModel(m_CompactFile);
+    }
+
+    @Benchmark
+    public Object readSerialized() throws Exception {
+        return SerializationHelper.read(m_SerializedFile.getPath());
+    }
+}
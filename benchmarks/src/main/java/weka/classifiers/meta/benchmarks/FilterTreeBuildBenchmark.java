@@ -0,0 +1,59 @@
+package weka.classifiers.meta.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import weka.classifiers.meta.FilterTree;
+import weka.classifiers.meta.SyntheticData;
+import weka.core.Instances;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the time to build a FilterTree. Run with -prof gc for allocation rates, for example
+ * java -jar benchmarks/target/benchmarks.jar FilterTreeBuildBenchmark -prof gc
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class FilterTreeBuildBenchmark {
+
+    @Param({"1000", "10000", "50000"})
+    public int numInstances;
+
+    @Param({"10"})
+    public int numAttributes;
+
+    @Param({"2", "5"})
+    public int numClasses;
+
+    @Param({"weka.filters.AllFilter",
+            "weka.filters.unsupervised.attribute.PrincipalComponents",
+            "weka.filters.unsupervised.attribute.RandomProjection"})
+    public String filter;
+
+    protected Instances m_Data;
+
+    @Setup
+    public void setup() {
+        m_Data = SyntheticData.create(numInstances, numAttributes, numClasses, 1);
+    }
+
+    @Benchmark
+    public FilterTree buildClassifier() throws Exception {
+        FilterTree tree = new FilterTree();
+        tree.setOptions(new String[]{"-F", filter});
+        tree.buildClassifier(m_Data);
+        return tree;
+    }
+}
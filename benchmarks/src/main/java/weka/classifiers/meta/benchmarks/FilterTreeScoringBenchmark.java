@@ -0,0 +1,76 @@
+package weka.classifiers.meta.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import weka.classifiers.meta.FilterTree;
+import weka.classifiers.meta.SyntheticData;
+import weka.core.Instance;
+import weka.core.Instances;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the throughput and latency of classifying with a trained FilterTree, one instance at a time and
+ * as a batch. Throughput and sample-time modes are both run, the latter reports latency percentiles. Run with
+ * -prof gc for allocation per operation, for example
+ * java -jar benchmarks/target/benchmarks.jar FilterTreeScoringBenchmark -prof gc
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class FilterTreeScoringBenchmark {
+
+    /**The number of instances in the batch that is scored**/
+    public static final int BATCH_SIZE = 1000;
+
+    @Param({"1000", "10000", "50000"})
+    public int numInstances;
+
+    @Param({"10"})
+    public int numAttributes;
+
+    @Param({"2", "5"})
+    public int numClasses;
+
+    @Param({"weka.filters.AllFilter",
+            "weka.filters.unsupervised.attribute.PrincipalComponents",
+            "weka.filters.unsupervised.attribute.RandomProjection"})
+    public String filter;
+
+    protected FilterTree m_Tree;
+
+    protected Instances m_Batch;
+
+    protected int m_Next;
+
+    @Setup
+    public void setup() throws Exception {
+        m_Tree = new FilterTree();
+        m_Tree.setOptions(new String[]{"-F", filter});
+        m_Tree.buildClassifier(SyntheticData.create(numInstances, numAttributes, numClasses, 1));
+        m_Batch = SyntheticData.create(BATCH_SIZE, numAttributes, numClasses, 2);
+    }
+
+    @Benchmark
+    public double[] distributionForInstance() throws Exception {
+        Instance instance = m_Batch.get(m_Next);
+        m_Next = m_Next + 1 == BATCH_SIZE ? 0 : m_Next + 1;
+        return m_Tree.distributionForInstance(instance);
+    }
+
+    @Benchmark
+    public double[][] distributionsForInstances() throws Exception {
+        return m_Tree.distributionsForInstances(m_Batch);
+    }
+}
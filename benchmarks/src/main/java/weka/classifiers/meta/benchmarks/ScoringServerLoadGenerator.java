@@ -0,0 +1,121 @@
+package weka.classifiers.meta.benchmarks;
+
+import weka.classifiers.meta.FilterTree;
+import weka.classifiers.meta.FilterTreeServer;
+import weka.classifiers.meta.SyntheticData;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load test of FilterTreeServer. Trains a tree on synthetic data, starts the server on a free localhost port
+ * and runs closed-loop clients that each send a request, wait for the response and send the next one. Every
+ * response is checked against distributionForInstance of the tree. Prints the throughput, the latency seen
+ * by the clients and the metrics of the server, and exits with status 1 if a response was wrong or failed.
+ * For example
+ * java -cp benchmarks/target/benchmarks.jar weka.classifiers.meta.benchmarks.ScoringServerLoadGenerator -clients 64 -max-wait 500
+ */
+public class ScoringServerLoadGenerator {
+
+    public static void main(String[] args) throws Exception {
+        int numClients = intOption("clients", args, 32);
+        int seconds = intOption("seconds", args, 10);
+        int instancesPerRequest = intOption("instances", args, 1);
+        int maxBatch = intOption("max-batch", args, 256);
+        int maxWait = intOption("max-wait", args, 1000);
+        String filter = Utils.getOption('F', args);
+
+        FilterTree tree = new FilterTree();
+        if (!filter.isEmpty()) {
+            tree.setOptions(new String[]{"-F", filter});
+        }
+        tree.buildClassifier(SyntheticData.create(10000, 10, 3, 1));
+        Instances requests = SyntheticData.create(10000, 10, 3, 2);
+
+        //The request bodies and the expected responses, the class value is left out
+        String[] bodies = new String[requests.size() / instancesPerRequest];
+        String[] expected = new String[bodies.length];
+        for (int r = 0; r < bodies.length; r++) {
+            StringBuilder body = new StringBuilder();
+            StringBuilder response = new StringBuilder();
+            for (int i = r * instancesPerRequest; i < (r + 1) * instancesPerRequest; i++) {
+                Instance instance = requests.get(i);
+                String separator = "";
+                for (int j = 0; j < instance.numAttributes(); j++) {
+                    if (j != instance.classIndex()) {
+                        body.append(separator).append(instance.value(j));
+                        separator = ",";
+                    }
+                }
+                body.append("\n");
+                double[] distribution = tree.distributionForInstance(instance);
+                for (int c = 0; c < distribution.length; c++) {
+                    response.append(c == 0 ? "" : ",").append(distribution[c]);
+                }
+                response.append("\n");
+            }
+            bodies[r] = body.toString();
+            expected[r] = response.toString();
+        }
+
+        FilterTreeServer server = new FilterTreeServer(tree);
+        server.setPort(0);
+        server.setMaxBatchSize(maxBatch);
+        server.setMaxWaitMicros(maxWait);
+        server.start();
+        URI uri = URI.create("http://localhost:" + server.getPort() + "/score");
+        HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+
+        FilterTreeServer.Histogram clientLatency = new FilterTreeServer.Histogram();
+        AtomicLong wrong = new AtomicLong();
+        AtomicLong failed = new AtomicLong();
+        long end = System.nanoTime() + seconds * 1_000_000_000L;
+        Thread[] clients = new Thread[numClients];
+        for (int t = 0; t < numClients; t++) {
+            int first = t;
+            clients[t] = new Thread(() -> {
+                for (int r = first; System.nanoTime() < end; r = (r + numClients) % bodies.length) {
+                    long start = System.nanoTime();
+                    try {
+                        HttpResponse<String> response = client.send(HttpRequest.newBuilder(uri)
+                                .POST(HttpRequest.BodyPublishers.ofString(bodies[r])).build(), HttpResponse.BodyHandlers.ofString());
+                        clientLatency.record((System.nanoTime() - start) / 1000);
+                        if (response.statusCode() != 200) {
+                            failed.incrementAndGet();
+                        } else if (!response.body().equals(expected[r])) {
+                            wrong.incrementAndGet();
+                        }
+                    } catch (Exception e) {
+                        failed.incrementAndGet();
+                    }
+                }
+            });
+            clients[t].start();
+        }
+        for (Thread thread : clients) {
+            thread.join();
+        }
+        server.stop();
+
+        System.out.println("clients " + numClients + ", instances per request " + instancesPerRequest + ", max batch "
+                + maxBatch + ", max wait " + maxWait + " us");
+        System.out.println("throughput: " + Utils.doubleToString(clientLatency.getCount() / (double) seconds, 1)
+                + " requests/s, wrong responses " + wrong.get() + ", failed requests " + failed.get());
+        System.out.print(clientLatency.toString("client latency", "us"));
+        System.out.print(server.metricsToString());
+        if (wrong.get() > 0 || failed.get() > 0) {
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+    protected static int intOption(String name, String[] args, int defaultValue) throws Exception {
+        String value = Utils.getOption(name, args);
+        return value.isEmpty() ? defaultValue : Integer.parseInt(value);
+    }
+}
@@ -0,0 +1,58 @@
+package weka.classifiers.meta;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Partitions the rows of a scoring batch with the Vector API. A block of values is compared against the
+ * split value at once, and blocks that go entirely one way are moved with block copies. Blocks that are
+ * split are laid out from the bits of the comparison mask. Only compiled with the vector profile, and only
+ * loaded by SplitPartitioner.create when the JVM runs with --add-modules jdk.incubator.vector.
+ */
+public class VectorSplitPartitioner extends SplitPartitioner {
+
+    /**The widest vector shape of the platform**/
+    protected static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    @Override
+    public int partition(int[] rows, double[] values, int from, int to, double splitValue, int[] scratchRows, double[] scratchValues) {
+
+        int lanes = SPECIES.length();
+        int bound = from + SPECIES.loopBound(to - from);
+        int left = from;
+        int right = from;
+        for (int i = from; i < bound; i += lanes) {
+            DoubleVector block = DoubleVector.fromArray(SPECIES, values, i);
+            VectorMask<Double> goesLeft = block.lt(splitValue);
+            if (goesLeft.allTrue()) {
+                block.intoArray(values, left);
+                System.arraycopy(rows, i, rows, left, lanes);
+                left += lanes;
+            } else if (!goesLeft.anyTrue()) {
+                block.intoArray(scratchValues, right);
+                System.arraycopy(rows, i, scratchRows, right, lanes);
+                right += lanes;
+            } else {
+                //Laying out the lanes from the mask bits, a lane is only overwritten once it has been read
+                long bits = goesLeft.toLong();
+                for (int k = 0; k < lanes; k++) {
+                    int row = rows[i + k];
+                    double value = values[i + k];
+                    int lane = (int) (bits >>> k) & 1;
+                    rows[left] = row;
+                    values[left] = value;
+                    scratchRows[right] = row;
+                    scratchValues[right] = value;
+                    left += lane;
+                    right += 1 - lane;
+                }
+            }
+        }
+        left = partitionRange(rows, values, bound, to, splitValue, scratchRows, scratchValues, left, right);
+
+        System.arraycopy(scratchRows, from, rows, left, to - left);
+        System.arraycopy(scratchValues, from, values, left, to - left);
+        return left;
+    }
+}
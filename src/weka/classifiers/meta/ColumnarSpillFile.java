@@ -0,0 +1,302 @@
+package weka.classifiers.meta;
+
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.UnsupportedAttributeTypeException;
+import weka.core.converters.AbstractFileLoader;
+import weka.core.converters.ArffLoader;
+import weka.core.converters.CSVLoader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Training data stored column by column in a file that is read through memory-mapped buffers, so a FilterTree
+ * can be built from data sets that do not fit on the heap. The file is written in one pass over an ARFF or CSV
+ * file with Weka's incremental loaders. Rows are stored in chunks, each chunk holding its columns one after the
+ * other followed by the instance weights. Missing values are stored as NaN, as Weka does. A snapshot of
+ * instances in memory holds the same columns in primitive arrays on the heap instead of a file.
+ */
+public class ColumnarSpillFile implements Closeable {
+
+    /**The largest number of bytes buffered on the heap while a chunk is written**/
+    protected static final int MAX_CHUNK_BYTES = 1 << 25;
+
+    /**The header of the data, with the class index set**/
+    protected Instances m_Header;
+
+    /**The number of rows**/
+    protected int m_NumInstances;
+
+    /**The number of rows in a chunk, the last chunk may have fewer**/
+    protected int m_ChunkSize;
+
+    /**The columns of each chunk, the last column of a chunk holds the instance weights**/
+    protected DoubleBuffer[][] m_Chunks;
+
+    /**The file holding the data, null for a snapshot on the heap**/
+    protected File m_File;
+
+    /**Whether the file is deleted when this object is closed**/
+    protected boolean m_DeleteOnClose;
+
+    /**
+     * Constructs a ColumnarSpillFile object for data that has already been written
+     *
+     * @param header the header of the data
+     * @param numInstances the number of rows
+     * @param chunkSize the number of rows in a chunk
+     * @param file the file holding the data
+     * @param deleteOnClose whether to delete the file when this object is closed
+     * @throws IOException if the file could not be mapped
+     */
+    protected ColumnarSpillFile(Instances header, int numInstances, int chunkSize, File file, boolean deleteOnClose) throws IOException {
+        m_Header = header;
+        m_NumInstances = numInstances;
+        m_ChunkSize = chunkSize;
+        m_File = file;
+        m_DeleteOnClose = deleteOnClose;
+
+        int numColumns = header.numAttributes() + 1;
+        m_Chunks = new DoubleBuffer[(numInstances + chunkSize - 1) / chunkSize][];
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+            for (int c = 0; c < m_Chunks.length; c++) {
+                int rows = Math.min(chunkSize, numInstances - c * chunkSize);
+                long position = (long) c * chunkSize * numColumns * Double.BYTES;
+                MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, position, (long) rows * numColumns * Double.BYTES);
+                m_Chunks[c] = new DoubleBuffer[numColumns];
+                for (int j = 0; j < numColumns; j++) {
+                    ByteBuffer column = chunk.duplicate();
+                    column.position(j * rows * Double.BYTES).limit((j + 1) * rows * Double.BYTES);
+                    m_Chunks[c][j] = column.slice().order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+                }
+            }
+        }
+    }
+
+    /**
+     * Constructs a ColumnarSpillFile object for columns held on the heap
+     *
+     * @param header the header of the data
+     * @param numInstances the number of rows
+     * @param columns the columns, the last one holding the instance weights
+     */
+    protected ColumnarSpillFile(Instances header, int numInstances, DoubleBuffer[] columns) {
+        m_Header = header;
+        m_NumInstances = numInstances;
+        m_ChunkSize = Math.max(1, numInstances);
+        m_Chunks = new DoubleBuffer[][]{columns};
+    }
+
+    /**
+     * Copies instances into one primitive array per attribute, plus one for the weights. The copy is read
+     * like a spill file, so the trees of an ensemble can all be built from one read-only copy of the data.
+     *
+     * @param data the instances, with the class index set
+     * @return the snapshot of the data
+     * @throws UnsupportedAttributeTypeException if the data has string or relational attributes
+     */
+    public static ColumnarSpillFile snapshot(Instances data) throws UnsupportedAttributeTypeException {
+        checkAttributes(data);
+        int numColumns = data.numAttributes() + 1;
+        double[][] columns = new double[numColumns][data.numInstances()];
+        for (int i = 0; i < data.numInstances(); i++) {
+            Instance instance = data.instance(i);
+            for (int j = 0; j < numColumns - 1; j++) {
+                columns[j][i] = instance.value(j);
+            }
+            columns[numColumns - 1][i] = instance.weight();
+        }
+        DoubleBuffer[] buffers = new DoubleBuffer[numColumns];
+        for (int j = 0; j < numColumns; j++) {
+            buffers[j] = DoubleBuffer.wrap(columns[j]);
+        }
+        return new ColumnarSpillFile(new Instances(data, 0), data.numInstances(), buffers);
+    }
+
+    /**
+     * Checks that the values of all attributes can be stored in columns. String and relational values are
+     * held in the header, which only keeps the current row while loading.
+     *
+     * @param structure the header of the data
+     * @throws UnsupportedAttributeTypeException if there is a string or relational attribute
+     */
+    protected static void checkAttributes(Instances structure) throws UnsupportedAttributeTypeException {
+        for (int j = 0; j < structure.numAttributes(); j++) {
+            Attribute attribute = structure.attribute(j);
+            if (attribute.isString() || attribute.isRelationValued()) {
+                throw new UnsupportedAttributeTypeException("Cannot spill " + Attribute.typeToString(attribute)
+                        + " attribute " + attribute.name());
+            }
+        }
+    }
+
+    /**
+     * Streams an ARFF or CSV file into a new spill file. Only one chunk of rows is held on the heap at a time.
+     *
+     * @param source the CSV file, or ARFF file (possibly gzipped), to read
+     * @param spillFile the file to write the columns to, or null to use a temporary file that is deleted on close
+     * @param classIndex the index of the class attribute, or -1 for the last attribute
+     * @return the spill file, ready to be read
+     * @throws Exception if the source could not be read or the spill file could not be written
+     */
+    public static ColumnarSpillFile create(File source, File spillFile, int classIndex) throws Exception {
+
+        //Choosing the loader by extension, looking it up through ConverterUtils would scan the class path
+        AbstractFileLoader loader = source.getName().toLowerCase().endsWith(".csv") ? new CSVLoader() : new ArffLoader();
+        loader.setFile(source);
+        Instances structure = loader.getStructure();
+        structure.setClassIndex(classIndex < 0 ? structure.numAttributes() - 1 : classIndex);
+
+        checkAttributes(structure);
+
+        boolean deleteOnClose = spillFile == null;
+        File file = deleteOnClose ? File.createTempFile("filtertree", ".columns") : spillFile;
+        int numColumns = structure.numAttributes() + 1;
+        int chunkSize = Math.max(1, MAX_CHUNK_BYTES / (numColumns * Double.BYTES));
+        double[][] chunk = new double[numColumns][chunkSize];
+        ByteBuffer bytes = ByteBuffer.allocate(chunkSize * Double.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+
+        long numInstances = 0;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel()) {
+            channel.truncate(0);
+            int rows = 0;
+            Instance instance;
+            while ((instance = loader.getNextInstance(structure)) != null) {
+                for (int j = 0; j < numColumns - 1; j++) {
+                    chunk[j][rows] = instance.value(j);
+                }
+                chunk[numColumns - 1][rows] = instance.weight();
+                if (++rows == chunkSize) {
+                    writeChunk(channel, chunk, rows, bytes);
+                    rows = 0;
+                }
+                if (++numInstances > Integer.MAX_VALUE) {
+                    throw new IOException("Too many instances in " + source);
+                }
+            }
+            if (rows > 0) {
+                writeChunk(channel, chunk, rows, bytes);
+            }
+        } catch (Exception e) {
+            if (deleteOnClose) {
+                file.delete();
+            }
+            throw e;
+        }
+
+        return new ColumnarSpillFile(new Instances(structure, 0), (int) numInstances, chunkSize, file, deleteOnClose);
+    }
+
+    /**
+     * Appends the first rows of each buffered column to the file
+     *
+     * @param channel the channel of the file
+     * @param chunk the buffered columns
+     * @param rows the number of rows in the chunk
+     * @param bytes a byte buffer large enough for one column
+     * @throws IOException if the file could not be written
+     */
+    protected static void writeChunk(FileChannel channel, double[][] chunk, int rows, ByteBuffer bytes) throws IOException {
+        for (double[] column : chunk) {
+            bytes.clear();
+            bytes.asDoubleBuffer().put(column, 0, rows);
+            bytes.limit(rows * Double.BYTES);
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+        }
+    }
+
+    /**
+     * Creates temporary columns that are held in a memory-mapped file rather than on the heap. The file is
+     * deleted straight away where the platform allows it, and otherwise when the virtual machine exits.
+     *
+     * @param numColumns the number of columns
+     * @param numRows the number of rows in each column
+     * @return the columns, all values initially 0
+     * @throws IOException if the file could not be created or mapped
+     */
+    public static DoubleBuffer[] createScratchColumns(int numColumns, int numRows) throws IOException {
+        File file = File.createTempFile("filtertree", ".node");
+        DoubleBuffer[] columns = new DoubleBuffer[numColumns];
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel()) {
+            for (int j = 0; j < numColumns; j++) {
+                columns[j] = channel.map(FileChannel.MapMode.READ_WRITE, (long) j * numRows * Double.BYTES,
+                        (long) numRows * Double.BYTES).order(ByteOrder.nativeOrder()).asDoubleBuffer();
+            }
+        } finally {
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+        return columns;
+    }
+
+    /**
+     * Returns the header of the data
+     *
+     * @return the header, without instances and with the class index set
+     */
+    public Instances getHeader() {
+        return m_Header;
+    }
+
+    /**
+     * Returns the number of rows
+     *
+     * @return the number of instances in the file
+     */
+    public int numInstances() {
+        return m_NumInstances;
+    }
+
+    /**
+     * Returns one value of the data
+     *
+     * @param row the index of the row
+     * @param attIndex the index of the attribute
+     * @return the value, NaN if it is missing
+     */
+    public double value(int row, int attIndex) {
+        return m_Chunks[row / m_ChunkSize][attIndex].get(row % m_ChunkSize);
+    }
+
+    /**
+     * Creates an instance holding one row of the data, with the header as its dataset
+     *
+     * @param row the index of the row
+     * @return the new instance
+     */
+    public Instance instance(int row) {
+        DoubleBuffer[] chunk = m_Chunks[row / m_ChunkSize];
+        int offset = row % m_ChunkSize;
+        double[] values = new double[chunk.length - 1];
+        for (int j = 0; j < values.length; j++) {
+            values[j] = chunk[j].get(offset);
+        }
+        Instance instance = new DenseInstance(chunk[values.length].get(offset), values);
+        instance.setDataset(m_Header);
+        return instance;
+    }
+
+    /**
+     * Releases the buffers and deletes the file if it is temporary. The mappings themselves are released by
+     * the garbage collector.
+     */
+    @Override
+    public void close() {
+        m_Chunks = null;
+        if (m_DeleteOnClose && m_File != null && !m_File.delete()) {
+            m_File.deleteOnExit();
+        }
+    }
+}
@@ -0,0 +1,638 @@
+package weka.classifiers.meta;
+
+import weka.classifiers.AbstractClassifier;
+import weka.core.Capabilities;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.OptionMetadata;
+import weka.filters.Filter;
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Paths;
+import java.security.CodeSource;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Classifier that trains a FilterTree and classifies with a class generated from it. The generated class
+ * holds the tree as nested comparisons, with the split values, the weights of linear projections and the
+ * leaf distributions written in as constants. Filters that are not linear projections are called directly,
+ * so the generated class gives exactly the same distributions as the tree it was generated from.
+ * <p>
+ * Generated classes are loaded by their own class loader, so only the trained tree is serialized and the
+ * class is generated again the first time a deserialized classifier classifies an instance. Trees too large
+ * for the constant pool of one class are not generated, their flattened tree is walked instead.
+ */
+public class CompiledFilterTree extends AbstractClassifier {
+
+    /**For serialization**/
+    private static final long serialVersionUID = 3439483222206999366L;
+
+    /**The largest number of levels of the tree written into one method, deeper subtrees get methods of their own**/
+    protected static final int MAX_LEVELS_PER_METHOD = 6;
+
+    /**The estimated bytecode size a method is kept under, HotSpot does not compile methods above 8000 bytes**/
+    protected static final int METHOD_SIZE_BUDGET = 6000;
+
+    /**The most constant pool entries a generated class may need, the class file format allows 65535**/
+    protected static final int MAX_CONSTANT_POOL_ENTRIES = 60000;
+
+    /**The FilterTree that is trained by buildClassifier, including its options**/
+    protected FilterTree m_Tree = new FilterTree();
+
+    /**The trained tree the classifier is generated from**/
+    protected FilterTree m_TrainedTree;
+
+    /**The most constant pool entries the generated class may need**/
+    protected int m_MaxConstantPoolEntries = MAX_CONSTANT_POOL_ENTRIES;
+
+    /**The generated classifier, generated again from the trained tree after deserialization**/
+    protected transient volatile GeneratedTree m_Generated;
+
+    @OptionMetadata(
+            displayName = "tree",
+            description = "The FilterTree to train and compile, including its options (default = FilterTree).",
+            commandLineParamName = "W", commandLineParamSynopsis = "-W <FilterTree specification>",
+            displayOrder = 1)
+    public FilterTree getTree() {
+        return m_Tree;
+    }
+
+    public void setTree(FilterTree tree) {
+        this.m_Tree = tree;
+    }
+
+    /**
+     * Returns a string describing this classifier
+     *
+     * @return a description of the classifier suitable for displaying in the explorer/experimenter gui
+     */
+    public String globalInfo() {
+        return "Class for training a FilterTree and classifying with a class generated and compiled from it.";
+    }
+
+    /**
+     * Returns default capabilities of the classifier.
+     *
+     * @return the capabilities of this classifier
+     */
+    @Override
+    public Capabilities getCapabilities() {
+        return m_Tree.getCapabilities();
+    }
+
+    /**
+     * Trains a copy of the FilterTree on the instances and generates the classifier for it
+     *
+     * @param instances the training data
+     * @throws Exception if the tree could not be built or compiled
+     */
+    @Override
+    public void buildClassifier(Instances instances) throws Exception {
+        FilterTree tree = FilterTree.copyTree(m_Tree);
+        tree.buildClassifier(instances);
+        m_Generated = generate(tree, m_MaxConstantPoolEntries);
+        m_TrainedTree = tree;
+    }
+
+    @Override
+    public double[] distributionForInstance(Instance instance) throws Exception {
+        return getGenerated().distributionForInstance(instance);
+    }
+
+    /**
+     * Returns the generated classifier, generating it again if this classifier was deserialized
+     *
+     * @return the generated classifier
+     * @throws Exception if the classifier has not been built, or the tree could not be compiled
+     */
+    protected GeneratedTree getGenerated() throws Exception {
+        GeneratedTree generated = m_Generated;
+        if (generated == null) {
+            synchronized (this) {
+                if (m_Generated == null) {
+                    if (m_TrainedTree == null) {
+                        throw new IllegalStateException("CompiledFilterTree: has not been built yet");
+                    }
+                    m_Generated = generate(m_TrainedTree, m_MaxConstantPoolEntries);
+                }
+                generated = m_Generated;
+            }
+        }
+        return generated;
+    }
+
+    /**
+     * Prints the tree the classifier was generated from
+     *
+     * @return the string representation
+     */
+    public String toString() {
+        if (m_TrainedTree == null) {
+            return "CompiledFilterTree: has not been built yet";
+        }
+        return "CompiledFilterTree generated from\n\n" + m_TrainedTree;
+    }
+
+    /**
+     * Generates the Java source of a classifier for a trained tree. Split nodes become nested comparisons,
+     * split nodes on linear projections compare a dot product written out with the weights as constants.
+     *
+     * @param tree the trained tree
+     * @param className the simple name of the class to generate, in package weka.classifiers.meta
+     * @return the Java source
+     */
+    public static String generateSource(FilterTree tree, String className) {
+
+        FilterTree.FlatTree flat = tree.m_Flat;
+        if (flat == null) {
+            throw new IllegalStateException("FilterTree: has not been built yet");
+        }
+        return generateSource(flat, className);
+    }
+
+    /**
+     * Generates the Java source of a classifier for a flattened tree
+     *
+     * @param flat the flattened tree
+     * @param className the simple name of the class to generate, in package weka.classifiers.meta
+     * @return the Java source
+     */
+    protected static String generateSource(FilterTree.FlatTree flat, String className) {
+
+        StringBuilder source = new StringBuilder();
+        source.append("package weka.classifiers.meta;\n\n");
+        source.append("import weka.core.Instance;\n");
+        source.append("import weka.filters.Filter;\n\n");
+        source.append("/** Generated from a trained FilterTree with ").append(flat.Left.length).append(" nodes. */\n");
+        source.append("public class ").append(className).append(" extends CompiledFilterTree.GeneratedTree {\n\n");
+        source.append("    @Override\n");
+        source.append("    protected double[] distribution(Instance instance, Filter[] filters) throws Exception {\n");
+        source.append("        return node0(instance, filters);\n");
+        source.append("    }\n");
+
+        //Every method covers as many levels of the tree as keep it small enough to be compiled by the JIT
+        int nodeSize = 12 * flat.NumClasses + 20;
+        for (LinearProjectionFilter linear : flat.LinearFilters) {
+            if (linear != null) {
+                int terms = 0;
+                for (double weight : linear.getWeights()) {
+                    terms += weight != 0 ? 1 : 0;
+                }
+                nodeSize = Math.max(nodeSize, 20 * terms + 20);
+            }
+        }
+        int levels = 1;
+        while (levels < MAX_LEVELS_PER_METHOD && (2 << levels) * nodeSize < METHOD_SIZE_BUDGET) {
+            levels++;
+        }
+
+        Deque<Integer> methods = new ArrayDeque<>();
+        methods.add(0);
+        while (!methods.isEmpty()) {
+            int node = methods.poll();
+            source.append("\n    protected double[] node").append(node).append("(Instance instance, Filter[] filters) throws Exception {\n");
+            generateNode(flat, node, 0, levels, "        ", source, methods);
+            source.append("    }\n");
+        }
+        source.append("}\n");
+        return source.toString();
+    }
+
+    /**
+     * Generates the code of a node and the levels below it that belong to the same method
+     *
+     * @param flat the flattened tree
+     * @param node the node in the flattened tree
+     * @param level the level of the node within the method
+     * @param levels the number of levels written into one method
+     * @param indent the indentation of the code
+     * @param source the source generated so far
+     * @param methods the nodes still waiting for a method of their own
+     */
+    protected static void generateNode(FilterTree.FlatTree flat, int node, int level, int levels, String indent, StringBuilder source, Deque<Integer> methods) {
+
+        if (flat.Left[node] < 0) {
+            int offset = flat.LeafOffset[node];
+            source.append(indent).append("return new double[]{");
+            for (int c = 0; c < flat.NumClasses; c++) {
+                source.append(c > 0 ? ", " : "").append(literal(flat.LeafDistributions[offset + c]));
+            }
+            source.append("};\n");
+            return;
+        }
+        if (level == levels) {
+            source.append(indent).append("return node").append(node).append("(instance, filters);\n");
+            methods.add(node);
+            return;
+        }
+
+        source.append(indent).append("if (").append(splitValueExpression(flat, node)).append(" < ")
+                .append(literal(flat.SplitValue[node])).append(") {\n");
+        generateNode(flat, flat.Left[node], level + 1, levels, indent + "    ", source, methods);
+        source.append(indent).append("} else {\n");
+        generateNode(flat, flat.Right[node], level + 1, levels, indent + "    ", source, methods);
+        source.append(indent).append("}\n");
+    }
+
+    /**
+     * Generates the expression for the split attribute value of a node, in the same order of operations
+     * as the flattened tree so the values are identical
+     *
+     * @param flat the flattened tree
+     * @param node the split node in the flattened tree
+     * @return the Java expression
+     */
+    protected static String splitValueExpression(FilterTree.FlatTree flat, int node) {
+        int slot = flat.FilterSlot[node];
+        if (slot < 0) {
+            return "instance.value(" + flat.SplitAttribute[node] + ")";
+        }
+        LinearProjectionFilter linear = flat.LinearFilters[slot];
+        if (linear == null) {
+            return "filterValue(filters, " + slot + ", instance, " + flat.SplitAttribute[node] + ")";
+        }
+        StringBuilder expression = new StringBuilder("(").append(literal(linear.getBias()));
+        double[] weights = linear.getWeights();
+        for (int j = 0; j < weights.length; j++) {
+            if (weights[j] != 0) {
+                expression.append(" + ").append(literal(weights[j])).append(" * value(instance, ").append(j)
+                        .append(", ").append(literal(linear.getMissingValues()[j])).append(")");
+            }
+        }
+        return expression.append(")").toString();
+    }
+
+    /**
+     * Writes a double as a Java expression with exactly the same value
+     *
+     * @param value the value
+     * @return the Java literal or constant
+     */
+    protected static String literal(double value) {
+        if (Double.isNaN(value)) {
+            return "Double.NaN";
+        }
+        if (Double.isInfinite(value)) {
+            return value > 0 ? "Double.POSITIVE_INFINITY" : "Double.NEGATIVE_INFINITY";
+        }
+        return value < 0 || (value == 0 && 1 / value < 0) ? "(" + value + ")" : Double.toString(value);
+    }
+
+    /**
+     * Estimates the constant pool entries of the class generated for a flattened tree. Each distinct double
+     * constant takes two entries, and every node is counted as if it got a method of its own, which takes
+     * a method reference, its name and type and the name.
+     *
+     * @param flat the flattened tree
+     * @return an upper bound of the number of constant pool entries
+     */
+    protected static int estimateConstantPoolEntries(FilterTree.FlatTree flat) {
+        Set<Long> constants = new HashSet<>();
+        for (int node = 0; node < flat.Left.length; node++) {
+            if (flat.Left[node] < 0) {
+                for (int c = 0; c < flat.NumClasses; c++) {
+                    constants.add(Double.doubleToLongBits(flat.LeafDistributions[flat.LeafOffset[node] + c]));
+                }
+            } else {
+                constants.add(Double.doubleToLongBits(flat.SplitValue[node]));
+            }
+        }
+        for (LinearProjectionFilter linear : flat.LinearFilters) {
+            if (linear != null) {
+                constants.add(Double.doubleToLongBits(linear.getBias()));
+                for (int j = 0; j < linear.getWeights().length; j++) {
+                    constants.add(Double.doubleToLongBits(linear.getWeights()[j]));
+                    constants.add(Double.doubleToLongBits(linear.getMissingValues()[j]));
+                }
+            }
+        }
+        return 2 * constants.size() + 3 * flat.Left.length + 100;
+    }
+
+    /**
+     * Returns the class path the generated source is compiled against: the locations the classes of this
+     * package and of Weka were loaded from, and the URLs of the class loaders that loaded them. The class
+     * path of the JVM misses them when Weka is loaded by a class loader of its own, as in the package
+     * manager or an application server.
+     *
+     * @return the class path
+     */
+    protected static String compileClassPath() {
+        Set<String> paths = new LinkedHashSet<>();
+        for (Class<?> cls : new Class<?>[]{CompiledFilterTree.class, AbstractClassifier.class}) {
+            CodeSource codeSource = cls.getProtectionDomain().getCodeSource();
+            if (codeSource != null && codeSource.getLocation() != null) {
+                addClassPathEntry(paths, codeSource.getLocation());
+            }
+            for (ClassLoader loader = cls.getClassLoader(); loader != null; loader = loader.getParent()) {
+                if (loader instanceof URLClassLoader) {
+                    for (URL url : ((URLClassLoader) loader).getURLs()) {
+                        addClassPathEntry(paths, url);
+                    }
+                }
+            }
+        }
+        return String.join(File.pathSeparator, paths);
+    }
+
+    /**
+     * Adds a location to a class path if it is a local file or directory
+     *
+     * @param paths the entries of the class path
+     * @param url the location
+     */
+    protected static void addClassPathEntry(Set<String> paths, URL url) {
+        if ("file".equals(url.getProtocol())) {
+            try {
+                paths.add(Paths.get(url.toURI()).toString());
+            } catch (URISyntaxException | IllegalArgumentException e) {
+                //Locations that are not plain files cannot be compiled against
+            }
+        }
+    }
+
+    /**
+     * Generates, compiles and loads the classifier for a trained tree. Needs a JDK, as the source is
+     * compiled in-process with javax.tools. A tree too large for one class is not compiled, the classifier
+     * returned then walks the flattened tree as it was when this method was called.
+     *
+     * @param tree the trained tree
+     * @return the generated classifier
+     * @throws Exception if no compiler is available or the source could not be compiled
+     */
+    public static CompiledFilterTree compile(FilterTree tree) throws Exception {
+        return compile(tree, MAX_CONSTANT_POOL_ENTRIES);
+    }
+
+    /**
+     * Generates, compiles and loads the classifier for a trained tree, unless the generated class would need
+     * more constant pool entries than given
+     *
+     * @param tree the trained tree
+     * @param maxConstantPoolEntries the most constant pool entries the generated class may need
+     * @return the generated classifier, walking the flattened tree if the tree is too large
+     * @throws Exception if no compiler is available or the source could not be compiled
+     */
+    public static CompiledFilterTree compile(FilterTree tree, int maxConstantPoolEntries) throws Exception {
+        CompiledFilterTree classifier = new CompiledFilterTree();
+        classifier.m_Tree.setOptions(tree.getOptions());
+        classifier.m_MaxConstantPoolEntries = maxConstantPoolEntries;
+        classifier.m_Generated = generate(tree, maxConstantPoolEntries);
+        classifier.m_TrainedTree = tree;
+        return classifier;
+    }
+
+    /**
+     * Generates, compiles and loads the class for a trained tree, or walks its flattened tree if the class
+     * would need more constant pool entries than given
+     *
+     * @param tree the trained tree
+     * @param maxConstantPoolEntries the most constant pool entries the generated class may need
+     * @return the generated classifier
+     * @throws Exception if no compiler is available or the source could not be compiled
+     */
+    protected static GeneratedTree generate(FilterTree tree, int maxConstantPoolEntries) throws Exception {
+
+        FilterTree.FlatTree flat = tree.m_Flat;
+        if (flat == null) {
+            throw new IllegalStateException("FilterTree: has not been built yet");
+        }
+        if (estimateConstantPoolEntries(flat) > maxConstantPoolEntries) {
+            return new InterpretedTree(tree, flat);
+        }
+
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null) {
+            throw new IllegalStateException("No Java compiler available, a JDK is needed to compile a FilterTree");
+        }
+        String className = "GeneratedFilterTree" + Integer.toHexString(System.identityHashCode(tree))
+                + Long.toHexString(System.nanoTime());
+        String source = generateSource(flat, className);
+
+        //Compiling in memory, the class files are kept as byte arrays
+        Map<String, ByteArrayOutputStream> classFiles = new HashMap<>();
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        StandardJavaFileManager standardFileManager = compiler.getStandardFileManager(diagnostics, null, null);
+        JavaFileObject sourceFile = new SimpleJavaFileObject(URI.create("string:///" + className + ".java"), JavaFileObject.Kind.SOURCE) {
+            @Override
+            public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+                return source;
+            }
+        };
+        ForwardingJavaFileManager<StandardJavaFileManager> fileManager = new ForwardingJavaFileManager<StandardJavaFileManager>(standardFileManager) {
+            @Override
+            public JavaFileObject getJavaFileForOutput(Location location, String name, JavaFileObject.Kind kind, FileObject sibling) {
+                return new SimpleJavaFileObject(URI.create("bytes:///" + name + kind.extension), kind) {
+                    @Override
+                    public OutputStream openOutputStream() {
+                        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                        classFiles.put(name, bytes);
+                        return bytes;
+                    }
+                };
+            }
+        };
+        List<String> options = Arrays.asList("-classpath", compileClassPath(), "-g:none");
+        boolean compiled;
+        try {
+            compiled = compiler.getTask(null, fileManager, diagnostics, options, null, Collections.singletonList(sourceFile)).call();
+        } finally {
+            fileManager.close();
+        }
+        if (!compiled) {
+            StringBuilder message = new StringBuilder("Could not compile the generated FilterTree:");
+            for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+                message.append('\n').append(diagnostic.getMessage(null));
+            }
+            throw new Exception(message.toString());
+        }
+
+        ClassLoader loader = new ClassLoader(CompiledFilterTree.class.getClassLoader()) {
+            @Override
+            protected Class<?> findClass(String name) throws ClassNotFoundException {
+                ByteArrayOutputStream bytes = classFiles.get(name);
+                if (bytes == null) {
+                    throw new ClassNotFoundException(name);
+                }
+                return defineClass(name, bytes.toByteArray(), 0, bytes.size());
+            }
+        };
+        GeneratedTree classifier = (GeneratedTree) loader.loadClass("weka.classifiers.meta." + className)
+                .getDeclaredConstructor().newInstance();
+
+        boolean[] inlined = new boolean[flat.Filters.length];
+        for (int slot = 0; slot < inlined.length; slot++) {
+            inlined[slot] = flat.LinearFilters[slot] != null;
+        }
+        classifier.setFilters(flat.Filters, inlined);
+        return classifier;
+    }
+
+    /**
+     * Base class of the generated classes. Holds the filters the generated code calls, and each thread's
+     * copies of them.
+     */
+    public abstract static class GeneratedTree {
+
+        /**The filters of the tree, indexed by the filter slots of the flattened tree**/
+        protected Filter[] m_Filters;
+
+        /**Whether the filter in each slot is replaced by a linear projection in the generated code**/
+        protected boolean[] m_Inlined;
+
+        /**Each thread's own copies of the filters that are called**/
+        protected ThreadLocal<Filter[]> m_ThreadFilters;
+
+        /**
+         * Sets the filters called by the generated code
+         *
+         * @param filters the filters of the tree, indexed by filter slot
+         * @param inlined whether the filter in each slot is replaced by a linear projection and never called
+         */
+        public void setFilters(Filter[] filters, boolean[] inlined) {
+            m_Filters = filters;
+            m_Inlined = inlined;
+            m_ThreadFilters = ThreadLocal.withInitial(this::copyFilters);
+        }
+
+        /**
+         * Copies the filters that are called, so a thread can filter instances without locking
+         *
+         * @return the copies, shared filters where a filter cannot be copied
+         */
+        protected Filter[] copyFilters() {
+            Filter[] filters = new Filter[m_Filters.length];
+            for (int i = 0; i < filters.length; i++) {
+                try {
+                    filters[i] = m_Inlined[i] ? m_Filters[i] : FilterTree.copyFittedFilter(m_Filters[i]);
+                } catch (Exception e) {
+                    filters[i] = m_Filters[i];
+                }
+            }
+            return filters;
+        }
+
+        /**
+         * Returns the class distribution for an instance, with the calling thread's filters
+         *
+         * @param instance the instance to classify
+         * @return the class distribution of the leaf reached
+         * @throws Exception if the instance could not be filtered
+         */
+        public double[] distributionForInstance(Instance instance) throws Exception {
+            return distribution(instance, m_Filters.length == 0 ? m_Filters : m_ThreadFilters.get());
+        }
+
+        /**
+         * Walks the generated tree
+         *
+         * @param instance the instance to classify
+         * @param filters the calling thread's filters
+         * @return the class distribution of the leaf reached
+         * @throws Exception if the instance could not be filtered
+         */
+        protected abstract double[] distribution(Instance instance, Filter[] filters) throws Exception;
+
+        /**
+         * Filters an instance and returns the value of one attribute of the output
+         *
+         * @param filters the calling thread's filters
+         * @param slot the slot of the filter
+         * @param instance the instance to filter
+         * @param attIndex the index of the attribute in the output of the filter
+         * @return the filtered value
+         * @throws Exception if the instance could not be filtered
+         */
+        protected double filterValue(Filter[] filters, int slot, Instance instance, int attIndex) throws Exception {
+            Filter filter = filters[slot];
+            if (filter == m_Filters[slot]) {
+                //Filter is shared between threads
+                synchronized (filter) {
+                    filter.input(instance);
+                    filter.batchFinished();
+                    return filter.output().value(attIndex);
+                }
+            }
+            filter.input(instance);
+            filter.batchFinished();
+            return filter.output().value(attIndex);
+        }
+
+        /**
+         * Returns a value of an instance, or the replacement used by a linear projection if it is missing
+         *
+         * @param instance the instance
+         * @param attIndex the index of the attribute
+         * @param missingValue the replacement for a missing value
+         * @return the value
+         */
+        protected static double value(Instance instance, int attIndex, double missingValue) {
+            double value = instance.value(attIndex);
+            return Double.isNaN(value) ? missingValue : value;
+        }
+    }
+
+    /**
+     * Used for trees too large to be generated as a class. Walks the flattened tree the FilterTree had when
+     * it was compiled, so it keeps giving the same distributions if the tree is updated.
+     */
+    protected static class InterpretedTree extends GeneratedTree {
+
+        /**The tree, which walks the flattened tree**/
+        protected final FilterTree m_Tree;
+
+        /**The flattened tree when it was compiled**/
+        protected final FilterTree.FlatTree m_Flat;
+
+        /**
+         * Constructs the classifier for a flattened tree
+         *
+         * @param tree the tree
+         * @param flat the flattened tree of the tree
+         */
+        public InterpretedTree(FilterTree tree, FilterTree.FlatTree flat) {
+            m_Tree = tree;
+            m_Flat = flat;
+            setFilters(new Filter[0], new boolean[0]);
+        }
+
+        @Override
+        protected double[] distribution(Instance instance, Filter[] filters) throws Exception {
+            int offset = m_Tree.traverseFlatTree(m_Flat, instance,
+                    m_Flat.Filters.length == 0 ? m_Flat.Filters : FilterTree.getThreadFilters(m_Flat));
+            return Arrays.copyOfRange(m_Flat.LeafDistributions, offset, offset + m_Flat.NumClasses);
+        }
+    }
+
+    /**
+     * The main method used for running this classifier from the command-line interface.
+     *
+     * @param options the command-line options
+     */
+    public static void main(String[] options) {
+        runClassifier(new CompiledFilterTree(), options);
+    }
+}
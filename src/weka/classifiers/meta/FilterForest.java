@@ -0,0 +1,328 @@
+package weka.classifiers.meta;
+
+import weka.classifiers.RandomizableClassifier;
+import weka.core.Capabilities;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.OptionMetadata;
+import weka.core.Utils;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Bagged ensemble of FilterTrees. All members are built from the same training data, which is only read:
+ * instances in memory are copied once into primitive columns, and each member gets its bootstrap sample
+ * as a list of row indices into them, so no member copies the data and the members can be built
+ * concurrently. Members are averaged for prediction.
+ */
+public class FilterForest extends RandomizableClassifier {
+
+    /**For serialization**/
+    private static final long serialVersionUID = 2572440995656424458L;
+
+    /**The trees of the forest**/
+    protected FilterTree[] m_Trees;
+
+    /**The tree that is copied for every member**/
+    protected FilterTree m_Tree = new FilterTree();
+
+    /**The number of trees**/
+    protected int m_NumTrees = 10;
+
+    /**The size of each bootstrap sample as a percentage of the training data**/
+    protected double m_BagSizePercent = 100;
+
+    /**The number of threads used for building and scoring**/
+    protected int m_NumExecutionSlots = 1;
+
+    @OptionMetadata(
+            displayName = "tree",
+            description = "The FilterTree to use for the members, including its options (default = FilterTree).",
+            commandLineParamName = "W", commandLineParamSynopsis = "-W <FilterTree specification>",
+            displayOrder = 1)
+    public FilterTree getTree() {
+        return m_Tree;
+    }
+
+    public void setTree(FilterTree tree) {
+        this.m_Tree = tree;
+    }
+
+    @OptionMetadata(
+            displayName = "numTrees",
+            description = "The number of trees in the forest (default = 10).",
+            commandLineParamName = "I", commandLineParamSynopsis = "-I <int>",
+            displayOrder = 2)
+    public int getNumTrees() {
+        return m_NumTrees;
+    }
+
+    public void setNumTrees(int numTrees) {
+        this.m_NumTrees = numTrees;
+    }
+
+    @OptionMetadata(
+            displayName = "bagSizePercent",
+            description = "The size of each bootstrap sample as a percentage of the training data (default = 100).",
+            commandLineParamName = "P", commandLineParamSynopsis = "-P <double>",
+            displayOrder = 3)
+    public double getBagSizePercent() {
+        return m_BagSizePercent;
+    }
+
+    public void setBagSizePercent(double bagSizePercent) {
+        this.m_BagSizePercent = bagSizePercent;
+    }
+
+    @OptionMetadata(
+            displayName = "numExecutionSlots",
+            description = "The number of trees built and scored at the same time, 0 = number of cores (default = 1).",
+            commandLineParamName = "num-slots", commandLineParamSynopsis = "-num-slots <int>",
+            displayOrder = 4)
+    public int getNumExecutionSlots() {
+        return m_NumExecutionSlots;
+    }
+
+    public void setNumExecutionSlots(int numExecutionSlots) {
+        this.m_NumExecutionSlots = numExecutionSlots;
+    }
+
+    /**
+     * Returns a string describing this classifier
+     *
+     * @return a description of the classifier
+     */
+    public String globalInfo() {
+        return "Class for building a bagged ensemble of FilterTrees that share one read-only copy of the training data.";
+    }
+
+    /**
+     * Returns default capabilities of the classifier.
+     *
+     * @return the capabilities of this classifier
+     */
+    public Capabilities getCapabilities() {
+        return m_Tree.getCapabilities();
+    }
+
+    /**
+     * Builds the forest from a snapshot of the instances in primitive columns, which all trees read
+     *
+     * @param instances that are used to build the classifier
+     * @throws Exception if a tree could not be built
+     */
+    @Override
+    public void buildClassifier(Instances instances) throws Exception {
+        Random random = instances.numInstances() > 0 ? instances.getRandomNumberGenerator(getSeed()) : new Random(getSeed());
+        ColumnarSpillFile snapshot = ColumnarSpillFile.snapshot(instances);
+        try {
+            buildForest(snapshot.getHeader(), snapshot, snapshot.numInstances(), random);
+        } finally {
+            snapshot.close();
+        }
+    }
+
+    /**
+     * Builds the forest out of core from training data in a columnar spill file, which all trees read
+     *
+     * @param data the training data, see ColumnarSpillFile.create
+     * @throws Exception if a tree could not be built
+     */
+    public void buildClassifier(ColumnarSpillFile data) throws Exception {
+
+        //Seeding the same way as Instances.getRandomNumberGenerator
+        Random random = new Random(getSeed());
+        if (data.numInstances() > 0) {
+            random.setSeed(data.instance(random.nextInt(data.numInstances())).toStringNoWeight().hashCode() + getSeed());
+        }
+        buildForest(data.getHeader(), data, data.numInstances(), random);
+    }
+
+    /**
+     * Builds the trees, several at a time if more than one execution slot is set. Every tree draws its own
+     * bootstrap sample of row indices while it is built, so only the trees being built hold one.
+     *
+     * @param header the header of the training data
+     * @param data the training data in columns
+     * @param numInstances the number of training instances
+     * @param random the random number generator the seeds of the trees are drawn from
+     * @throws Exception if a tree could not be built
+     */
+    protected void buildForest(Instances header, ColumnarSpillFile data, int numInstances, Random random) throws Exception {
+
+        m_Trees = new FilterTree[m_NumTrees];
+        int bagSize = (int) Math.round(numInstances * m_BagSizePercent / 100);
+
+        //Separate seeds for the sample and the tree, so they do not draw the same numbers
+        long[] sampleSeeds = new long[m_NumTrees];
+        int[] treeSeeds = new int[m_NumTrees];
+        for (int t = 0; t < m_NumTrees; t++) {
+            sampleSeeds[t] = random.nextLong();
+            treeSeeds[t] = random.nextInt();
+        }
+
+        if (m_NumExecutionSlots == 1) {
+            for (int t = 0; t < m_NumTrees; t++) {
+                m_Trees[t] = buildTree(header, data, numInstances, bagSize, sampleSeeds[t], treeSeeds[t]);
+            }
+            return;
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(m_NumExecutionSlots > 0 ? m_NumExecutionSlots : Runtime.getRuntime().availableProcessors());
+        try {
+            ForkJoinTask<?>[] tasks = new ForkJoinTask<?>[m_NumTrees];
+            for (int t = 0; t < m_NumTrees; t++) {
+                int index = t;
+                tasks[t] = pool.submit(() -> {
+                    m_Trees[index] = buildTree(header, data, numInstances, bagSize, sampleSeeds[index], treeSeeds[index]);
+                    return null;
+                });
+            }
+            for (ForkJoinTask<?> task : tasks) {
+                FilterTree.joinTask(task);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Builds one tree on a bootstrap sample
+     *
+     * @param header the header of the training data
+     * @param data the training data in columns
+     * @param numInstances the number of training instances
+     * @param bagSize the number of rows to draw
+     * @param sampleSeed the seed for drawing the rows
+     * @param treeSeed the seed of the tree
+     * @return the tree
+     * @throws Exception if the tree could not be built
+     */
+    protected FilterTree buildTree(Instances header, ColumnarSpillFile data, int numInstances, int bagSize,
+                                   long sampleSeed, int treeSeed) throws Exception {
+
+        //Drawing with replacement, sorted so the tree reads the data in order
+        Random random = new Random(sampleSeed);
+        int[] rows = new int[numInstances > 0 ? bagSize : 0];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = random.nextInt(numInstances);
+        }
+        Arrays.sort(rows);
+
+        FilterTree tree = FilterTree.copyTree(m_Tree);
+        tree.setSeed(treeSeed);
+        tree.setNumExecutionSlots(1);
+        tree.buildClassifier(header, data, rows);
+        return tree;
+    }
+
+    /**
+     * Averages the class distributions of the trees
+     *
+     * @param instance the instance to classify
+     * @return the class distribution
+     * @throws Exception if the instance could not be classified
+     */
+    @Override
+    public double[] distributionForInstance(Instance instance) throws Exception {
+        double[] sums = new double[instance.numClasses()];
+        for (FilterTree tree : m_Trees) {
+            double[] distribution = tree.distributionForInstance(instance);
+            for (int c = 0; c < sums.length; c++) {
+                sums[c] += distribution[c];
+            }
+        }
+        return normalize(sums);
+    }
+
+    /**
+     * Gets the class distributions for a batch of instances. Every tree scores the whole batch through its
+     * batch path, so each of its filters is applied once per node to the rows reaching the node, and the
+     * trees score the batch in parallel if more than one execution slot is set.
+     *
+     * @param batch the instances you want to find predictions for
+     * @return the class distribution for each instance
+     * @throws Exception if the batch could not be scored
+     */
+    @Override
+    public double[][] distributionsForInstances(Instances batch) throws Exception {
+
+        double[][][] treeResults = new double[m_Trees.length][][];
+        if (m_NumExecutionSlots == 1) {
+            for (int t = 0; t < m_Trees.length; t++) {
+                treeResults[t] = m_Trees[t].distributionsForInstances(batch);
+            }
+        } else {
+            ForkJoinTask<?>[] tasks = new ForkJoinTask<?>[m_Trees.length];
+            for (int t = 0; t < m_Trees.length; t++) {
+                int index = t;
+                tasks[t] = ForkJoinPool.commonPool().submit(() -> {
+                    treeResults[index] = m_Trees[index].distributionsForInstances(batch);
+                    return null;
+                });
+            }
+            for (ForkJoinTask<?> task : tasks) {
+                FilterTree.joinTask(task);
+            }
+        }
+
+        double[][] result = new double[batch.size()][];
+        for (int i = 0; i < result.length; i++) {
+            double[] sums = new double[batch.numClasses()];
+            for (double[][] treeResult : treeResults) {
+                for (int c = 0; c < sums.length; c++) {
+                    sums[c] += treeResult[i][c];
+                }
+            }
+            result[i] = normalize(sums);
+        }
+        return result;
+    }
+
+    /**
+     * Normalizes summed distributions, leaving them uniform if all are 0
+     *
+     * @param sums the summed distributions
+     * @return the normalized distribution, the same array
+     */
+    protected static double[] normalize(double[] sums) {
+        if (Utils.sum(sums) > 0) {
+            Utils.normalize(sums);
+        } else {
+            Arrays.fill(sums, 1.0 / sums.length);
+        }
+        return sums;
+    }
+
+    @Override
+    public boolean implementsMoreEfficientBatchPrediction() {
+        return true;
+    }
+
+    /**
+     * Prints the trees of the forest
+     *
+     * @return the string representation
+     */
+    public String toString() {
+        if (m_Trees == null) {
+            return "FilterForest: has not been built yet";
+        }
+        StringBuilder text = new StringBuilder("FilterForest with ").append(m_Trees.length).append(" trees\n");
+        for (int t = 0; t < m_Trees.length; t++) {
+            text.append("\nTree ").append(t + 1).append(":\n").append(m_Trees[t]).append("\n");
+        }
+        return text.toString();
+    }
+
+    /**
+     * The main method used for running this classifier from the command-line interface.
+     *
+     * @param options the command-line options
+     */
+    public static void main(String[] options) {
+        runClassifier(new FilterForest(), options);
+    }
+}
@@ -1,26 +1,177 @@
 package weka.classifiers.meta;
 
+import weka.classifiers.AbstractClassifier;
 import weka.classifiers.RandomizableClassifier;
+import weka.classifiers.UpdateableClassifier;
 import weka.core.*;
 import weka.filters.AllFilter;
 import weka.filters.Filter;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.io.Serializable;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
 
-public class FilterTree extends RandomizableClassifier {
+public class FilterTree extends RandomizableClassifier implements UpdateableClassifier, AdditionalMeasureProducer {
 
     /**The root node of the decision tree**/
     protected Node m_RootNode;
 
+    /**The header of the training instances**/
+    protected Instances m_Header;
+
+    /**The first four bytes of a compact model file**/
+    protected static final int COMPACT_MAGIC = 0x46545245;
+
+    /**The version of the compact model format**/
+    protected static final int COMPACT_VERSION = 2;
+
+    /**Filter kinds in a compact model file: a Java serialized filter, or the weights of a linear projection**/
+    protected static final byte COMPACT_FILTER_SERIALIZED = 0;
+    protected static final byte COMPACT_FILTER_LINEAR = 1;
+
+    /**Largest amount by which the running entropy of a split may exceed the best one and still be recomputed from the counts,
+     * well above the rounding drift of the running sums**/
+    protected static final double ENTROPY_EPS = 1e-6;
+
+    /**Partitions the rows of a scoring batch at each split node, with the Vector API where available**/
+    protected static final SplitPartitioner PARTITIONER = SplitPartitioner.create();
+
     /**The filter to use locally at each node**/
     protected Filter m_Filter = new AllFilter();
 
     /**The minimum number of instances required for splitting**/
     protected double m_MinInstances = 2.0;
 
+    /**The number of quantile bins used for the approximate split search, 0 means always search exactly**/
+    protected int m_HistogramBins = 0;
+
+    /**The minimum number of instances a node needs for the approximate split search to be used**/
+    protected int m_HistogramThreshold = 100000;
+
+    /**The number of instances sampled for fitting the filter of a larger node, 0 means fit on all instances**/
+    protected int m_FilterSampleSize = 0;
+
+    /**The maximum number of leaves, 0 means no limit. Setting it grows the tree best-first**/
+    protected int m_MaxLeaves = 0;
+
+    /**The maximum depth of the tree, 0 means no limit**/
+    protected int m_MaxDepth = 0;
+
+    /**The time budget for growing the tree in seconds, 0 means no limit. Setting it grows the tree best-first**/
+    protected double m_TimeBudget = 0.0;
+
+    /**Nodes with more instances than this keep their filtered data in a memory-mapped file, 0 means never**/
+    protected int m_SpillThreshold = 0;
+
+    /**The number of new instances a leaf collects between attempts to split it, 0 means leaves are never split**/
+    protected int m_GracePeriod = 0;
+
+    /**The probability of a leaf being split on new instances although the split is not the best, for the Hoeffding bound**/
+    protected double m_SplitConfidence = 1e-7;
+
     /**A random number generator**/
     protected Random m_Random;
 
+    /**The number of threads used for building the tree, 0 means use all available cores**/
+    protected int m_NumExecutionSlots = 1;
+
+    /**The minimum number of instances a node needs for its subtrees to be built in parallel**/
+    protected int m_ParallelCutoff = 1000;
+
+    /**Whether the attributes of a node are evaluated in parallel when searching for a split**/
+    protected boolean m_ParallelAttributeSearch = false;
+
+    /**Whether splits on filters that are affine in the input are compiled into weight vectors after training**/
+    protected boolean m_ObliqueSplits = false;
+
+    /**Nodes with at most this many instances do not fit a filter of their own, 0 = all nodes do**/
+    protected int m_SmallNodeSize = 0;
+
+    /**What nodes at or below the small node size use instead of fitting a filter**/
+    protected int m_SmallNodePolicy = POLICY_IDENTITY;
+
+    /**The fraction of the training data held out for reduced-error pruning, 0 = no reduced-error pruning**/
+    protected double m_PruneFraction = 0;
+
+    /**Whether splits whose subtrees predict the same class are collapsed into leaves after building**/
+    protected boolean m_CollapseSameClass = false;
+
+    /**The number of nodes and filters before pruning and the scoring latency in microseconds per instance before and after, 0 if the tree was not pruned**/
+    protected int m_NodesBeforePruning;
+    protected int m_FiltersBeforePruning;
+    protected double m_LatencyBeforePruning;
+    protected double m_LatencyAfterPruning;
+
+    /**Small node policies: split on the input attributes, or reuse the fitted filter of the parent node**/
+    public static final int POLICY_IDENTITY = 0;
+    public static final int POLICY_INHERIT = 1;
+    public static final Tag[] TAGS_SMALL_NODE_POLICY = {
+            new Tag(POLICY_IDENTITY, "identity", "identity"),
+            new Tag(POLICY_INHERIT, "inherit", "inherit")
+    };
+
+    /**The maximum number of training instances the scoring latency is measured on when none are held out for pruning**/
+    protected static final int LATENCY_SAMPLE_SIZE = 10000;
+
+    /**The type of the prediction events, whether it is enabled is checked before sampling a prediction**/
+    protected static final EventType PREDICTION_EVENT_TYPE = EventType.getEventType(PredictionEvent.class);
+
+    /**How the filter of a split node was chosen**/
+    protected static final byte FILTER_FITTED = 0;
+    protected static final byte FILTER_IDENTITY = 1;
+    protected static final byte FILTER_INHERITED = 2;
+
+    /**The pool that runs subtree tasks while the tree is built in parallel**/
+    protected transient ForkJoinPool m_Pool;
+
+    /**Table of n * ln(n) for every count up to the size of the largest node split by the build or an update**/
+    protected transient double[] m_NLogN;
+
+    /**Scratch space for partitioning the rows of a node, used while building**/
+    protected transient int[] m_ScratchRows;
+
+    /**The next queue position handed out during best-first growth**/
+    protected transient long m_QueueOrder;
+
+    /**The class counts of split nodes, summed over their leaves when first needed**/
+    protected transient Map<Node, double[]> m_SubtreeClassCounts;
+
+    /**The flattened tree used for inference, replaced as a whole whenever the tree changes**/
+    protected volatile FlatTree m_Flat;
+
+    /**The work done by the split search of the last build, reported as measures**/
+    protected SearchCounters m_BuildCounters = new SearchCounters();
+
+    /**One in this many predictions is recorded as a JFR event, 0 means none**/
+    protected int m_PredictionEventRate = 1000;
+
     @OptionMetadata(
             displayName = "threshold",
             description = "The minimum number of instances required for splitting (default = 2.0).",
@@ -47,6 +198,317 @@ public class FilterTree extends RandomizableClassifier {
         this.m_Filter = filter;
     }
 
+    @OptionMetadata(
+            displayName = "histogramBins",
+            description = "The number of quantile bins for the approximate split search on large nodes, 0 = exact search (default = 0).",
+            commandLineParamName = "B", commandLineParamSynopsis = "-B <int>",
+            displayOrder = 6)
+    public int getHistogramBins() {
+        return m_HistogramBins;
+    }
+
+    public void setHistogramBins(int histogramBins) {
+        this.m_HistogramBins = histogramBins;
+    }
+
+    @OptionMetadata(
+            displayName = "histogramThreshold",
+            description = "The minimum number of instances at a node for the approximate split search to be used (default = 100000).",
+            commandLineParamName = "H", commandLineParamSynopsis = "-H <int>",
+            displayOrder = 7)
+    public int getHistogramThreshold() {
+        return m_HistogramThreshold;
+    }
+
+    public void setHistogramThreshold(int histogramThreshold) {
+        this.m_HistogramThreshold = histogramThreshold;
+    }
+
+    @OptionMetadata(
+            displayName = "filterSampleSize",
+            description = "The number of instances sampled for fitting the filter at nodes with more instances, 0 = fit on all (default = 0).",
+            commandLineParamName = "Z", commandLineParamSynopsis = "-Z <int>",
+            displayOrder = 8)
+    public int getFilterSampleSize() {
+        return m_FilterSampleSize;
+    }
+
+    public void setFilterSampleSize(int filterSampleSize) {
+        this.m_FilterSampleSize = filterSampleSize;
+    }
+
+    @OptionMetadata(
+            displayName = "maxLeaves",
+            description = "The maximum number of leaves, grows the tree best-first by information gain, 0 = no limit (default = 0).",
+            commandLineParamName = "N", commandLineParamSynopsis = "-N <int>",
+            displayOrder = 9)
+    public int getMaxLeaves() {
+        return m_MaxLeaves;
+    }
+
+    public void setMaxLeaves(int maxLeaves) {
+        this.m_MaxLeaves = maxLeaves;
+    }
+
+    @OptionMetadata(
+            displayName = "maxDepth",
+            description = "The maximum depth of the tree, 0 = no limit (default = 0).",
+            commandLineParamName = "L", commandLineParamSynopsis = "-L <int>",
+            displayOrder = 10)
+    public int getMaxDepth() {
+        return m_MaxDepth;
+    }
+
+    public void setMaxDepth(int maxDepth) {
+        this.m_MaxDepth = maxDepth;
+    }
+
+    @OptionMetadata(
+            displayName = "timeBudget",
+            description = "The time budget for growing the tree in seconds, grows the tree best-first by information gain, 0 = no limit (default = 0).",
+            commandLineParamName = "T", commandLineParamSynopsis = "-T <double>",
+            displayOrder = 11)
+    public double getTimeBudget() {
+        return m_TimeBudget;
+    }
+
+    public void setTimeBudget(double timeBudget) {
+        this.m_TimeBudget = timeBudget;
+    }
+
+    @OptionMetadata(
+            displayName = "spillThreshold",
+            description = "Nodes with more instances than this keep their filtered data in a memory-mapped temporary file instead of on the heap, 0 = never (default = 0).",
+            commandLineParamName = "X", commandLineParamSynopsis = "-X <int>",
+            displayOrder = 12)
+    public int getSpillThreshold() {
+        return m_SpillThreshold;
+    }
+
+    public void setSpillThreshold(int spillThreshold) {
+        this.m_SpillThreshold = spillThreshold;
+    }
+
+    @OptionMetadata(
+            displayName = "gracePeriod",
+            description = "The number of instances added with updateClassifier that a leaf collects between attempts to split it, 0 = only update the class counts of leaves (default = 0).",
+            commandLineParamName = "G", commandLineParamSynopsis = "-G <int>",
+            displayOrder = 13)
+    public int getGracePeriod() {
+        return m_GracePeriod;
+    }
+
+    public void setGracePeriod(int gracePeriod) {
+        this.m_GracePeriod = gracePeriod;
+    }
+
+    @OptionMetadata(
+            displayName = "splitConfidence",
+            description = "The allowed probability of splitting a leaf on new instances with a split that is not good enough, used in the Hoeffding bound (default = 1e-7).",
+            commandLineParamName = "C", commandLineParamSynopsis = "-C <double>",
+            displayOrder = 14)
+    public double getSplitConfidence() {
+        return m_SplitConfidence;
+    }
+
+    public void setSplitConfidence(double splitConfidence) {
+        this.m_SplitConfidence = splitConfidence;
+    }
+
+    @OptionMetadata(
+            displayName = "predictionEventRate",
+            description = "One in this many calls to distributionForInstance emits a JFR event while flight recording is on, 0 = none (default = 1000).",
+            commandLineParamName = "R", commandLineParamSynopsis = "-R <int>",
+            displayOrder = 15)
+    public int getPredictionEventRate() {
+        return m_PredictionEventRate;
+    }
+
+    public void setPredictionEventRate(int predictionEventRate) {
+        this.m_PredictionEventRate = predictionEventRate;
+    }
+
+    @OptionMetadata(
+            displayName = "numExecutionSlots",
+            description = "The number of threads used for building the tree, 0 = number of cores, any value other than 1 also scores large batches in parallel (default = 1).",
+            commandLineParamName = "E", commandLineParamSynopsis = "-E <int>",
+            displayOrder = 3)
+    public int getNumExecutionSlots() {
+        return m_NumExecutionSlots;
+    }
+
+    public void setNumExecutionSlots(int numExecutionSlots) {
+        this.m_NumExecutionSlots = numExecutionSlots;
+    }
+
+    @OptionMetadata(
+            displayName = "parallelCutoff",
+            description = "The minimum number of instances at a node for its subtrees to be built or scored in parallel (default = 1000).",
+            commandLineParamName = "K", commandLineParamSynopsis = "-K <int>",
+            displayOrder = 4)
+    public int getParallelCutoff() {
+        return m_ParallelCutoff;
+    }
+
+    public void setParallelCutoff(int parallelCutoff) {
+        this.m_ParallelCutoff = parallelCutoff;
+    }
+
+    @OptionMetadata(
+            displayName = "parallelAttributeSearch",
+            description = "Evaluate the attributes of nodes above the parallel cutoff in parallel, using numExecutionSlots threads.",
+            commandLineParamName = "A", commandLineParamSynopsis = "-A",
+            commandLineParamIsFlag = true, displayOrder = 5)
+    public boolean getParallelAttributeSearch() {
+        return m_ParallelAttributeSearch;
+    }
+
+    public void setParallelAttributeSearch(boolean parallelAttributeSearch) {
+        this.m_ParallelAttributeSearch = parallelAttributeSearch;
+    }
+
+    @OptionMetadata(
+            displayName = "obliqueSplits",
+            description = "After training, store the splits of filters that are affine in the input attributes, such as PCA or RandomProjection, as weight vectors so they are scored with a dot product. Values may differ from the filter in the last bits.",
+            commandLineParamName = "O", commandLineParamSynopsis = "-O",
+            commandLineParamIsFlag = true, displayOrder = 16)
+    public boolean getObliqueSplits() {
+        return m_ObliqueSplits;
+    }
+
+    public void setObliqueSplits(boolean obliqueSplits) {
+        this.m_ObliqueSplits = obliqueSplits;
+    }
+
+    @OptionMetadata(
+            displayName = "smallNodeSize",
+            description = "Nodes with at most this many instances do not fit a filter of their own but follow the small node policy, 0 = all nodes fit a filter (default = 0).",
+            commandLineParamName = "I", commandLineParamSynopsis = "-I <int>",
+            displayOrder = 17)
+    public int getSmallNodeSize() {
+        return m_SmallNodeSize;
+    }
+
+    public void setSmallNodeSize(int smallNodeSize) {
+        this.m_SmallNodeSize = smallNodeSize;
+    }
+
+    @OptionMetadata(
+            displayName = "smallNodePolicy",
+            description = "What small nodes use instead of fitting a filter: the input attributes (identity), or the fitted filter of their parent (inherit) (default = identity).",
+            commandLineParamName = "J", commandLineParamSynopsis = "-J <identity|inherit>",
+            displayOrder = 18)
+    public SelectedTag getSmallNodePolicy() {
+        return new SelectedTag(m_SmallNodePolicy, TAGS_SMALL_NODE_POLICY);
+    }
+
+    public void setSmallNodePolicy(SelectedTag smallNodePolicy) {
+        if (smallNodePolicy.getTags() == TAGS_SMALL_NODE_POLICY) {
+            this.m_SmallNodePolicy = smallNodePolicy.getSelectedTag().getID();
+        }
+    }
+
+    @OptionMetadata(
+            displayName = "pruneFraction",
+            description = "The fraction of the training data held out for reduced-error pruning, 0 = no reduced-error pruning (default = 0).",
+            commandLineParamName = "P", commandLineParamSynopsis = "-P <double>",
+            displayOrder = 19)
+    public double getPruneFraction() {
+        return m_PruneFraction;
+    }
+
+    public void setPruneFraction(double pruneFraction) {
+        this.m_PruneFraction = pruneFraction;
+    }
+
+    @OptionMetadata(
+            displayName = "collapseSameClass",
+            description = "Collapse splits whose subtrees predict the same class into leaves after building.",
+            commandLineParamName = "U", commandLineParamSynopsis = "-U",
+            commandLineParamIsFlag = true, displayOrder = 20)
+    public boolean getCollapseSameClass() {
+        return m_CollapseSameClass;
+    }
+
+    public void setCollapseSameClass(boolean collapseSameClass) {
+        this.m_CollapseSameClass = collapseSameClass;
+    }
+
+    /**
+     * Returns the number of split points skipped during the last build because the value does not change
+     * or both neighbouring blocks of equal values have the same single class
+     *
+     * @return the number of skipped split points
+     */
+    public long getNumCandidatesSkipped() {
+        return m_BuildCounters.CandidatesSkipped.sum();
+    }
+
+    /**
+     * Returns an enumeration of the additional measure names
+     *
+     * @return an enumeration of the measure names
+     */
+    @Override
+    public Enumeration<String> enumerateMeasures() {
+        return Collections.enumeration(Arrays.asList("measureNumNodes", "measureNumLeaves", "measureTreeDepth",
+                "measureFilterFitTime", "measureFilterTime", "measureSortTime", "measureSplitSearchTime",
+                "measureCandidatesEvaluated", "measureCandidatesSkipped", "measureNumFittedFilters",
+                "measureNumIdentityNodes", "measureNumInheritedFilters", "measureNumFilters",
+                "measureNumNodesBeforePruning", "measureNumFiltersBeforePruning", "measureLatencyBeforePruning",
+                "measureLatencyAfterPruning"));
+    }
+
+    /**
+     * Returns the value of the named measure. Times are in milliseconds of the last build, summed over the
+     * threads that built the tree, latencies in microseconds per scored instance.
+     *
+     * @param additionalMeasureName the name of the measure to query for its value
+     * @return the value of the named measure
+     * @throws IllegalArgumentException if the named measure is not supported
+     */
+    @Override
+    public double getMeasure(String additionalMeasureName) {
+        switch (additionalMeasureName) {
+            case "measureNumNodes":
+                return m_RootNode == null ? 0 : countNodes(m_RootNode);
+            case "measureNumLeaves":
+                return m_RootNode == null ? 0 : (countNodes(m_RootNode) + 1) / 2;
+            case "measureTreeDepth":
+                return m_RootNode == null ? 0 : treeDepth(m_RootNode);
+            case "measureFilterFitTime":
+                return m_BuildCounters.FilterFitTime.sum() / 1e6;
+            case "measureFilterTime":
+                return m_BuildCounters.FilterTime.sum() / 1e6;
+            case "measureSortTime":
+                return m_BuildCounters.SortTime.sum() / 1e6;
+            case "measureSplitSearchTime":
+                return m_BuildCounters.SplitSearchTime.sum() / 1e6;
+            case "measureCandidatesEvaluated":
+                return m_BuildCounters.CandidatesEvaluated.sum();
+            case "measureCandidatesSkipped":
+                return m_BuildCounters.CandidatesSkipped.sum();
+            case "measureNumFittedFilters":
+                return m_RootNode == null ? 0 : countFilterChoices(m_RootNode, FILTER_FITTED);
+            case "measureNumIdentityNodes":
+                return m_RootNode == null ? 0 : countFilterChoices(m_RootNode, FILTER_IDENTITY);
+            case "measureNumInheritedFilters":
+                return m_RootNode == null ? 0 : countFilterChoices(m_RootNode, FILTER_INHERITED);
+            case "measureNumFilters":
+                return m_Flat == null ? 0 : m_Flat.Filters.length;
+            case "measureNumNodesBeforePruning":
+                return m_NodesBeforePruning;
+            case "measureNumFiltersBeforePruning":
+                return m_FiltersBeforePruning;
+            case "measureLatencyBeforePruning":
+                return m_LatencyBeforePruning;
+            case "measureLatencyAfterPruning":
+                return m_LatencyAfterPruning;
+            default:
+                throw new IllegalArgumentException(additionalMeasureName + " not supported (FilterTree)");
+        }
+    }
+
     /**
      * Returns a string describing this classifier
      *
@@ -95,6 +557,9 @@ public class FilterTree extends RandomizableClassifier {
         //The filter used for the node
         protected Filter Filter;
 
+        //How the filter was chosen: fitted at the node, the identity for a small node, or inherited from the parent
+        protected byte FilterChoice = FILTER_FITTED;
+
 
         /**
          * Constructs a SplitNodeInfo object
@@ -121,6 +586,12 @@ public class FilterTree extends RandomizableClassifier {
         //Stores class count for toString tree output
         protected double[] ClassCountForString;
 
+        // The instances added with updateClassifier since the leaf was created, kept if leaves may be split
+        protected Instances NewInstances;
+
+        // The offset of the class distribution of the leaf in the flattened tree
+        protected int FlatOffset;
+
         /**
          * Constructs a LeafNodeInfo object.
          *
@@ -138,16 +609,109 @@ public class FilterTree extends RandomizableClassifier {
      */
     private class UnexpandedNodeInfo implements NodeInfo {
 
+        // The training instances, shared by all nodes. For out-of-core training only the header
         protected Instances Instances;
 
+        // The training data for out-of-core training, null if the instances are held in memory
+        protected ColumnarSpillFile Spill;
+
+        // The indices of the training instances, every node owns a range of this array
+        protected int[] Rows;
+
+        // The first position in Rows of the instances that reach the node
+        protected int From;
+
+        // The position after the last one
+        protected int To;
+
+        // The depth of the node, 0 for the root
+        protected int Depth;
+
+        // The seed of the node, derived from its position in the tree
+        protected long Seed;
+
+        // The fitted filter of the parent node, null for the root
+        protected Filter ParentFilter;
+
+        // The split found for the node, set once the node has been evaluated and is worth splitting
+        protected Filter SplitFilter;
+        protected byte SplitFilterChoice;
+        protected Attribute SplitAttribute;
+        protected double SplitValue;
+
+        // The position in Rows of the first row going right, the rows are partitioned when the split is found
+        protected int Mid;
+
+        // The information gain of the split weighted by the number of instances, which is the reduction in total entropy
+        protected double InformationGain;
+
+        // The seeds of the children
+        protected long LeftSeed;
+        protected long RightSeed;
+
+        // The order in which the node was queued during best-first growth, used to break ties
+        protected long Order;
+
 
         /**
          * Constructs an UnexpandedNodeInfo object.
          *
-         * @param
+         * @param instances the training instances, shared by all nodes
+         * @param spill the training data for out-of-core training, or null
+         * @param rows the indices of the training instances
+         * @param from the first position in rows of the instances that reach the node
+         * @param to the position after the last one
+         * @param depth the depth of the node
+         * @param seed the seed for the random numbers used at the node
          */
-        public UnexpandedNodeInfo(Instances instances) {
+        public UnexpandedNodeInfo(Instances instances, ColumnarSpillFile spill, int[] rows, int from, int to, int depth, long seed) {
             Instances = instances;
+            Spill = spill;
+            Rows = rows;
+            From = from;
+            To = to;
+            Depth = depth;
+            Seed = seed;
+        }
+
+        /**
+         * Returns the number of instances that reach the node
+         *
+         * @return the number of instances
+         */
+        public int size() {
+            return To - From;
+        }
+
+        /**
+         * Returns a training instance, which is read from the spill file for out-of-core training
+         *
+         * @param row the index of the instance
+         * @return the instance
+         */
+        public Instance instance(int row) {
+            return Spill != null ? Spill.instance(row) : Instances.get(row);
+        }
+
+        /**
+         * Returns one value of a training instance
+         *
+         * @param row the index of the instance
+         * @param attIndex the index of the attribute
+         * @return the value
+         */
+        public double value(int row, int attIndex) {
+            return Spill != null ? Spill.value(row, attIndex) : Instances.get(row).value(attIndex);
+        }
+
+        /**
+         * Returns the class of a training instance
+         *
+         * @param row the index of the instance
+         * @return the class value
+         */
+        public int classValue(int row) {
+            return (int) (Spill != null ? Spill.value(row, Instances.classIndex()) : Instances.get(row).classValue());
         }
     }
 
@@ -169,134 +733,739 @@ public class FilterTree extends RandomizableClassifier {
         }
     }
 
-
     /**
-     * Constructs a leaf node from an unexpanded node
-     *
-     * @param node that is turned into a leaf node
-     * @return the newly constructed leaf node with the relevant prediction data
+     * The trained tree laid out as flat arrays for inference. The arrays are never changed once the object
+     * has been published in m_Flat: changes to the tree build a new object, so a thread that reads m_Flat
+     * once classifies with one consistent tree while the tree is being updated.
      */
-    protected Node makeLeafNode(Node node){
+    protected static class FlatTree implements Serializable {
 
-        Instances instances = ((UnexpandedNodeInfo)node.NodeInfo).Instances;
+        // For serialization
+        private static final long serialVersionUID = -1192277591276988140L;
 
-        double[] predictionOutput = new double[instances.numClasses()];
-        double[] classCount = new double[instances.numClasses()];
+        // Index of the left child of each node, -1 for leaf nodes
+        protected final int[] Left;
 
-        //Calculating the class distribution at the node
-        for(Instance i: instances){
-            predictionOutput[(int)i.classValue()]++;
-            classCount[(int)i.classValue()]++;
-        }
-        Utils.normalize(predictionOutput);
-        node.NodeInfo = new LeafNodeInfo(predictionOutput,classCount);
-        return node;
+        // Index of the right child of each node, -1 for leaf nodes
+        protected final int[] Right;
 
-    }
+        // Index of the split attribute of each split node in the output of its filter
+        protected final int[] SplitAttribute;
 
-    /**
-     * Creates a sufficient statistics 2D array based on the instances given to the method
-     * it stores the class values and the count of the class values each side of a binary split
-     * @param newInstances is what is used to create the sufficient statistics array
-     * @return 2D array of size to corresponding to class values either side of a binary split
-     */
-    protected int[][] createSufficientStatistics(Instances newInstances){
-        int[][] currentStats = new int[2][newInstances.numClasses()+1];
+        // Split value of each split node
+        protected final double[] SplitValue;
 
-        //Calculating left side statistics, initially this will be the first value
-        currentStats[0][(int)newInstances.get(0).classValue()]++;
-        currentStats[0][newInstances.numClasses()]++; //Amount of instances in left side of tree
+        // Offset of the class distribution of each leaf node in LeafDistributions
+        protected final int[] LeafOffset;
 
-        //Calculating the right side statistics
-        for (int j = 1; j < newInstances.size() ; j++) {
-            currentStats[1][(int)newInstances.get(j).classValue()]++;
-            currentStats[1][newInstances.numClasses()]++;//Amount of instances on the right side of the tree
-        }
+        // Index of the filter of each split node in Filters, -1 if the filter passes instances through unchanged
+        protected final int[] FilterSlot;
 
-        return currentStats;
-    }
+        // The class distributions of all leaf nodes, one after the other
+        protected double[] LeafDistributions;
 
-    /**
-     * Moves up the sufficient statistics array from left to right,
-     * each time placing one class value from the right side on the left
-     * @param instanceToMove instance to move from right side of the split to left side of the split
-     * @param newInstances the instances to interact with
-     * @param currentStats the current Sufficient statistics array
-     */
-    protected void updateSufficientStatistics(Instance instanceToMove,Instances newInstances, int[][] currentStats){
+        // The number of classes, which is the length of each leaf distribution
+        protected int NumClasses = -1;
 
-        //Removing from the right side of tree statistics
-        currentStats[1][(int) instanceToMove.classValue()] --;
-        currentStats[1][newInstances.numClasses()]--;
+        // The filters used by the split nodes
+        protected Filter[] Filters;
 
-        //Add instance to the left side;
-        currentStats[0][(int) instanceToMove.classValue()] ++;
-        currentStats[0][newInstances.numClasses()]++;
+        // The split attribute of each filter in Filters as a weight vector, null where the filter is not affine or obliqueSplits is off
+        protected LinearProjectionFilter[] LinearFilters;
+
+        // Each thread's own copies of Filters, so instances can be classified from several threads at once
+        protected transient volatile ThreadLocal<Filter[]> ThreadFilters;
+
+        /**
+         * Constructs a FlatTree object with room for the given number of nodes
+         *
+         * @param numNodes the number of nodes
+         */
+        public FlatTree(int numNodes) {
+            Left = new int[numNodes];
+            Right = new int[numNodes];
+            SplitAttribute = new int[numNodes];
+            SplitValue = new double[numNodes];
+            LeafOffset = new int[numNodes];
+            FilterSlot = new int[numNodes];
+        }
+
+        /**
+         * Constructs a FlatTree object sharing the structure and filters of another one, with other leaf distributions
+         *
+         * @param tree the tree to share
+         * @param leafDistributions the class distributions of the leaf nodes
+         */
+        public FlatTree(FlatTree tree, double[] leafDistributions) {
+            Left = tree.Left;
+            Right = tree.Right;
+            SplitAttribute = tree.SplitAttribute;
+            SplitValue = tree.SplitValue;
+            LeafOffset = tree.LeafOffset;
+            FilterSlot = tree.FilterSlot;
+            LeafDistributions = leafDistributions;
+            NumClasses = tree.NumClasses;
+            Filters = tree.Filters;
+            LinearFilters = tree.LinearFilters;
+            ThreadFilters = tree.ThreadFilters;
+        }
     }
 
+
     /**
-     * Used to calculate the entropy of a node before a split
-     *
-     * @param instances the instance of a node to calculate the expected entropy
-     * @return a value of entropy for the instance given
+     * Class whose objects store the best split found for an attribute.
      */
-    protected double calculateExpectedEntropyBeforeSplit(Instances instances){
+    private class SplitCandidate {
 
-        int[] classValueCount = new int[instances.numClasses()];
-        double[] probValues = new double[instances.numClasses()];
-        double[] entropyValues = new double[instances.numClasses()];
-        double[] outputValues = new double[instances.numClasses()];
-        int size = instances.size();
-        double finalValue = 0.0;
+        // The index of the attribute used for splitting
+        protected int AttributeIndex;
 
-        //getting a class value count
-        for (Instance i: instances) {
-            classValueCount[((int) i.classValue())]++;
-        }
+        // The split value
+        protected double SplitValue;
 
-        //Calculating entropy of each class
-        for (int i = 0; i < classValueCount.length; i++) {
-            probValues[i] = (double) classValueCount[i]/size;
-            if(probValues[i] != 0.0){
-                entropyValues[i] = Math.log((double) probValues[i])/Math.log(2);
-                outputValues[i] -= (probValues[i] * entropyValues[i]);
-            }
-        }
+        // The expected entropy after the split
+        protected double ExpectedEntropy;
 
-        //Calculating entropy for all classes
-        for (int i = 0; i < outputValues.length; i++) {
-            finalValue += outputValues[i];
+        /**
+         * Constructs a SplitCandidate object.
+         *
+         * @param attributeIndex the index of the attribute that defines the split
+         * @param splitValue the value used for the split
+         * @param expectedEntropy the expected entropy after the split
+         */
+        public SplitCandidate(int attributeIndex, double splitValue, double expectedEntropy) {
+            AttributeIndex = attributeIndex;
+            SplitValue = splitValue;
+            ExpectedEntropy = expectedEntropy;
         }
-
-        return finalValue;
     }
 
     /**
-     * Used to calculate expected entropy for a certain binary split
-     *
-     * @param inputStats the input sufficent statistics
-     * @return a entropy value for the given statistics
+     * Class whose objects store the filtered data of a node as primitive columns for the split search.
      */
-    protected double calculateExpectedEntropy(int[][] inputStats){
+    private class NodeColumns {
 
-        double left = 0.0,out1Left,probLeft;
-        int totalLeft = inputStats[0][inputStats[0].length - 1];
-        double right = 0.0,out1Right,probRight;
-        int totalRight = inputStats[1][inputStats[1].length - 1 ];
-        int totalInstances = totalLeft + totalRight;
+        // The values of each attribute, the class attribute is not included. Null if the columns are spilled
+        protected double[][] Columns;
 
-        for (int i = 0; i < inputStats[0].length - 1; i++) {
+        // The values of each attribute in a memory-mapped file, for nodes above the spill threshold
+        protected DoubleBuffer[] SpilledColumns;
 
-            //Calculate entropy left side
-            probLeft = (double) inputStats[0][i]/totalLeft;
-            //Making sure it is not zero or it will be NaN - Have to treat it as a zero for computational reasons
-            if(probLeft != 0.0){
-                out1Left = Math.log((double) probLeft)/Math.log(2);
-                left -= (probLeft * out1Left);
-            }
+        // The number of attributes, the class attribute is not included
+        protected int NumAttributes;
 
-            //Calculate entropy right side
-            probRight = (double) inputStats[1][i]/totalRight;
+        // The class value of each instance
+        protected int[] ClassValues;
+
+        // The number of classes
+        protected int NumClasses;
+
+        /**
+         * Constructs a NodeColumns object by running the instances of a node through a filter and
+         * copying each filtered instance into the columns as it comes out. AllFilter outputs the
+         * instances unchanged, so for it the columns are read from the instances directly. A filter
+         * that has already been fitted converts each instance as it is input, so its output is
+         * collected while the rows are read and the node is never held as instances.
+         *
+         * @param filter the filter of the node, with its input format set and possibly already fitted
+         * @param nodeInfo the unexpanded node whose instances are filtered
+         * @throws Exception if the instances could not be filtered
+         */
+        public NodeColumns(Filter filter, UnexpandedNodeInfo nodeInfo) throws Exception {
+            boolean passThrough = filter instanceof AllFilter;
+            boolean streaming = !passThrough && filter.isFirstBatchDone();
+            if (!passThrough && !streaming) {
+                for (int i = nodeInfo.From; i < nodeInfo.To; i++) {
+                    filter.input(nodeInfo.instance(nodeInfo.Rows[i]));
+                }
+                filter.batchFinished();
+            }
+
+            Instances outputFormat = filter.getOutputFormat();
+            NumAttributes = outputFormat.numAttributes() - 1;
+            ClassValues = new int[nodeInfo.size()];
+            NumClasses = outputFormat.numClasses();
+            if (m_SpillThreshold > 0 && nodeInfo.size() > m_SpillThreshold) {
+                SpilledColumns = ColumnarSpillFile.createScratchColumns(NumAttributes, nodeInfo.size());
+            } else {
+                Columns = new double[NumAttributes][nodeInfo.size()];
+            }
+
+            if (passThrough) {
+                for (int i = 0; i < ClassValues.length; i++) {
+                    int row = nodeInfo.Rows[nodeInfo.From + i];
+                    for (int j = 0; j < NumAttributes; j++) {
+                        set(j, i, nodeInfo.value(row, j));
+                    }
+                    ClassValues[i] = nodeInfo.classValue(row);
+                }
+                return;
+            }
+
+            int count = 0;
+            for (int i = nodeInfo.From; streaming && i < nodeInfo.To; i++) {
+                filter.input(nodeInfo.instance(nodeInfo.Rows[i]));
+                while (filter.numPendingOutput() > 0) {
+                    add(count++, filter.output());
+                }
+            }
+            if (streaming) {
+                filter.batchFinished();
+            }
+            while (count < ClassValues.length) {
+                add(count++, filter.output());
+            }
+        }
+
+        /**
+         * Stores one value of the columns
+         *
+         * @param attIndex the index of the attribute
+         * @param i the position of the instance in the node
+         * @param value the value
+         */
+        protected void set(int attIndex, int i, double value) {
+            if (Columns != null) {
+                Columns[attIndex][i] = value;
+            } else {
+                SpilledColumns[attIndex].put(i, value);
+            }
+        }
+
+        /**
+         * Stores a filtered instance in the columns
+         *
+         * @param i the position of the instance in the node
+         * @param filtered the filtered instance
+         */
+        protected void add(int i, Instance filtered) {
+            for (int j = 0; j < NumAttributes; j++) {
+                set(j, i, filtered.value(j));
+            }
+            ClassValues[i] = (int) filtered.classValue();
+        }
+
+        /**
+         * Returns the values of one attribute, reading them into a new array if the columns are spilled
+         *
+         * @param attIndex the index of the attribute
+         * @return the values of the attribute, in the order of the rows of the node
+         */
+        public double[] column(int attIndex) {
+            if (Columns != null) {
+                return Columns[attIndex];
+            }
+            double[] values = new double[ClassValues.length];
+            SpilledColumns[attIndex].duplicate().get(values);
+            return values;
+        }
+    }
+
+    /**
+     * Task that finds the best split for one attribute in the fork/join pool.
+     */
+    private class AttributeSplitTask extends RecursiveTask<SplitCandidate> {
+
+        // For serialization
+        private static final long serialVersionUID = 1180871742018051761L;
+
+        // The filtered data of the node
+        protected NodeColumns Data;
+
+        // The index of the attribute to evaluate
+        protected int AttributeIndex;
+
+        // The counters the search adds to
+        protected SearchCounters Counters;
+
+        /**
+         * Constructs an AttributeSplitTask object.
+         *
+         * @param data the filtered data of the node
+         * @param attributeIndex the index of the attribute to evaluate
+         * @param counters the counters the search adds to
+         */
+        public AttributeSplitTask(NodeColumns data, int attributeIndex, SearchCounters counters) {
+            Data = data;
+            AttributeIndex = attributeIndex;
+            Counters = counters;
+        }
+
+        @Override
+        protected SplitCandidate compute() {
+            return evaluateSplitAttribute(Data, AttributeIndex, Counters);
+        }
+    }
+
+    /**
+     * The work done by the split search, summed over the threads that search. The build adds to the
+     * counters reported as measures, splits of leaves while the tree is updated to counters of their own.
+     */
+    protected static class SearchCounters implements Serializable {
+
+        // For serialization
+        private static final long serialVersionUID = -162042971156326663L;
+
+        // The number of split points that were not scored because they are not boundary points
+        protected LongAdder CandidatesSkipped = new LongAdder();
+
+        // The number of split points whose expected entropy was calculated
+        protected LongAdder CandidatesEvaluated = new LongAdder();
+
+        // Time spent fitting filters on samples, in nanoseconds
+        protected LongAdder FilterFitTime = new LongAdder();
+
+        // Time spent filtering the instances of nodes, which includes fitting filters on whole nodes
+        protected LongAdder FilterTime = new LongAdder();
+
+        // Time spent sorting attribute values
+        protected LongAdder SortTime = new LongAdder();
+
+        // Time spent scanning split points and histograms
+        protected LongAdder SplitSearchTime = new LongAdder();
+    }
+
+    /**
+     * Task that processes an unexpanded node and its subtrees in the fork/join pool.
+     */
+    private class SplitNodeTask extends RecursiveTask<Node> {
+
+        // For serialization
+        private static final long serialVersionUID = -335343823875742760L;
+
+        // The unexpanded node to process
+        protected Node Node;
+
+        /**
+         * Constructs a SplitNodeTask object.
+         *
+         * @param node the unexpanded node to process
+         */
+        public SplitNodeTask(Node node) {
+            Node = node;
+        }
+
+        @Override
+        protected Node compute() {
+            try {
+                return splitNode(Node);
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * JFR event recorded for every node whose split is searched while building the tree.
+     */
+    @Name("weka.classifiers.meta.FilterTree.NodeBuild")
+    @Label("FilterTree Node Build")
+    @Category({"Weka", "FilterTree"})
+    @Description("Filtering and split search of one node")
+    static class NodeBuildEvent extends Event {
+
+        @Label("Depth")
+        int depth;
+
+        @Label("Instances")
+        int numInstances;
+
+        @Label("Attributes")
+        @Description("The number of attributes output by the filter of the node")
+        int numAttributes;
+
+        @Label("Split")
+        @Description("Whether the node is worth splitting")
+        boolean split;
+
+        @Label("Information Gain")
+        double informationGain;
+    }
+
+    /**
+     * JFR event recorded for a sample of the calls to distributionForInstance.
+     */
+    @Name("weka.classifiers.meta.FilterTree.Prediction")
+    @Label("FilterTree Prediction")
+    @Category({"Weka", "FilterTree"})
+    @Description("Classification of one instance, recorded for one in predictionEventRate calls")
+    static class PredictionEvent extends Event {
+
+        @Label("Leaf Offset")
+        @Description("The offset of the distribution of the leaf reached in the flattened tree")
+        int leafOffset;
+    }
+
+    /**
+     * Task that scores the rows of a batch that reach a node of the flattened tree in the fork/join pool.
+     */
+    private class BatchScoringTask extends RecursiveAction {
+
+        // For serialization
+        private static final long serialVersionUID = 1992151226420613598L;
+
+        // The flattened tree
+        protected FlatTree Flat;
+
+        // The node of the flattened tree
+        protected int Node;
+
+        // The batch being scored
+        protected Instances Batch;
+
+        // The row indices of the batch, partitioned in place
+        protected int[] Rows;
+
+        // Scratch space for the split attribute values, aligned with Rows
+        protected double[] Values;
+
+        // Scratch space for the rows going right while a range is partitioned, aligned with Rows
+        protected int[] ScratchRows;
+
+        // Scratch space for the values of the rows going right, aligned with Rows
+        protected double[] ScratchValues;
+
+        // The first position in Rows handled by this task
+        protected int From;
+
+        // The position after the last one handled by this task
+        protected int To;
+
+        // The distributions, indexed by row
+        protected double[][] Result;
+
+        /**
+         * Constructs a BatchScoringTask object.
+         *
+         * @param flat the flattened tree
+         * @param node the node of the flattened tree
+         * @param batch the batch being scored
+         * @param rows the row indices of the batch
+         * @param values scratch space for the split attribute values
+         * @param scratchRows scratch space for partitioning the rows
+         * @param scratchValues scratch space for partitioning the values
+         * @param from the first position in rows to score
+         * @param to the position after the last one to score
+         * @param result the distributions, indexed by row
+         */
+        public BatchScoringTask(FlatTree flat, int node, Instances batch, int[] rows, double[] values, int[] scratchRows,
+                                double[] scratchValues, int from, int to, double[][] result) {
+            Flat = flat;
+            Node = node;
+            Batch = batch;
+            Rows = rows;
+            Values = values;
+            ScratchRows = scratchRows;
+            ScratchValues = scratchValues;
+            From = from;
+            To = to;
+            Result = result;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                scoreFlatBatch(Flat, Node, Batch, Rows, Values, ScratchRows, ScratchValues, From, To, Result);
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * Waits for a task and returns its result, rethrowing the exception raised by the task
+     *
+     * @param task the task to wait for
+     * @return the result of the task
+     * @throws Exception if the task failed
+     */
+    protected static <T> T joinTask(ForkJoinTask<T> task) throws Exception {
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            //Unwrapping checked exceptions wrapped by the task and copies made by the pool
+            while (cause != null && cause.getClass() == RuntimeException.class && cause.getCause() != null) {
+                cause = cause.getCause();
+            }
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Constructs a leaf node from an unexpanded node
+     *
+     * @param node that is turned into a leaf node
+     * @return the newly constructed leaf node with the relevant prediction data
+     */
+    protected Node makeLeafNode(Node node){
+
+        UnexpandedNodeInfo nodeInfo = (UnexpandedNodeInfo)node.NodeInfo;
+        Instances instances = nodeInfo.Instances;
+
+        double[] predictionOutput = new double[instances.numClasses()];
+        double[] classCount = new double[instances.numClasses()];
+
+        //Calculating the class distribution at the node
+        for (int j = nodeInfo.From; j < nodeInfo.To; j++) {
+            int classValue = nodeInfo.classValue(nodeInfo.Rows[j]);
+            predictionOutput[classValue]++;
+            classCount[classValue]++;
+        }
+
+        //A tree built from no instances, to be trained with updateClassifier, predicts all classes equally
+        if (nodeInfo.size() == 0) {
+            Arrays.fill(predictionOutput, 1.0);
+        }
+        Utils.normalize(predictionOutput);
+        node.NodeInfo = new LeafNodeInfo(predictionOutput,classCount);
+        return node;
+
+    }
+
+    /**
+     * Draws a reservoir sample of the rows of a node
+     *
+     * @param nodeInfo the node to sample from
+     * @param sampleSize the number of rows to draw, at most the size of the node
+     * @param random the random number generator used for sampling
+     * @return the sampled row indices, in the order they have in the node
+     */
+    protected int[] sampleRows(UnexpandedNodeInfo nodeInfo, int sampleSize, Random random) {
+        int[] sample = Arrays.copyOfRange(nodeInfo.Rows, nodeInfo.From, nodeInfo.From + sampleSize);
+        for (int i = sampleSize; i < nodeInfo.size(); i++) {
+            int j = random.nextInt(i + 1);
+            if (j < sampleSize) {
+                sample[j] = nodeInfo.Rows[nodeInfo.From + i];
+            }
+        }
+        Arrays.sort(sample);
+        return sample;
+    }
+
+    /**
+     * Fits a filter on a subset of the training instances by passing them through as its first batch
+     *
+     * @param filter the filter, with its input format set
+     * @param nodeInfo the node the instances belong to
+     * @param rows the indices of the instances to fit on
+     * @throws Exception if the filter could not be fitted
+     */
+    protected void fitFilter(Filter filter, UnexpandedNodeInfo nodeInfo, int[] rows) throws Exception {
+        for (int row : rows) {
+            filter.input(nodeInfo.instance(row));
+        }
+        filter.batchFinished();
+
+        //Discarding the filtered sample, all rows of the node are filtered afterwards
+        while (filter.output() != null) {
+        }
+    }
+
+    /**
+     * Partitions the row range of a node in place, keeping the order of the rows on each side
+     *
+     * @param nodeInfo the node whose rows are partitioned
+     * @param column the split attribute value of each row, aligned with the range of the node
+     * @param splitValue the split value
+     * @return the position of the first row that goes right
+     */
+    protected int partitionRows(UnexpandedNodeInfo nodeInfo, double[] column, double splitValue) {
+
+        int[] rows = nodeInfo.Rows;
+        int from = nodeInfo.From;
+
+        //Rows going right are held in the same range of the scratch array, ranges of different nodes never overlap
+        int[] scratch = m_ScratchRows != null ? m_ScratchRows : new int[nodeInfo.To];
+        int left = from;
+        int right = from;
+        for (int i = from; i < nodeInfo.To; i++) {
+            if (column[i - from] < splitValue) {
+                rows[left++] = rows[i];
+            } else {
+                scratch[right++] = rows[i];
+            }
+        }
+        System.arraycopy(scratch, from, rows, left, right - from);
+        return left;
+    }
+
+    /**
+     * Creates a sufficient statistics 2D array from class values that are already in sorted order,
+     * with the first value on the left side and all other values on the right side
+     * @param sortedClassValues the class values in the order of the attribute being evaluated
+     * @param numClasses the number of classes
+     * @return 2D array of size to corresponding to class values either side of a binary split
+     */
+    protected int[][] createSufficientStatistics(int[] sortedClassValues, int numClasses){
+        int[][] currentStats = new int[2][numClasses+1];
+
+        //Calculating left side statistics, initially this will be the first value
+        currentStats[0][sortedClassValues[0]]++;
+        currentStats[0][numClasses]++; //Amount of instances in left side of tree
+
+        //Calculating the right side statistics
+        for (int j = 1; j < sortedClassValues.length ; j++) {
+            currentStats[1][sortedClassValues[j]]++;
+        }
+        currentStats[1][numClasses] = sortedClassValues.length - 1;//Amount of instances on the right side of the tree
+
+        return currentStats;
+    }
+
+    /**
+     * Moves one class value from the right side of the sufficient statistics array to the left side
+     * @param classValue the class value of the instance to move
+     * @param currentStats the current Sufficient statistics array
+     */
+    protected void updateSufficientStatistics(int classValue, int[][] currentStats){
+        int numClasses = currentStats[0].length - 1;
+
+        //Removing from the right side of tree statistics
+        currentStats[1][classValue]--;
+        currentStats[1][numClasses]--;
+
+        //Add instance to the left side;
+        currentStats[0][classValue]++;
+        currentStats[0][numClasses]++;
+    }
+
+    /**
+     * Creates a table of n * ln(n) for every integer count from 0 to the given maximum
+     *
+     * @param maxCount the largest count in the table
+     * @return the table, where entry n is n * ln(n) and entry 0 is 0
+     */
+    protected double[] createNLogNTable(int maxCount) {
+        double[] table = new double[maxCount + 1];
+        for (int n = 1; n <= maxCount; n++) {
+            table[n] = n * Math.log(n);
+        }
+        return table;
+    }
+
+    /**
+     * Returns the n * ln(n) table of the current build, or a new table if it does not cover the given count
+     *
+     * @param maxCount the largest count that will be looked up
+     * @return a table covering all counts up to maxCount
+     */
+    protected double[] getNLogNTable(int maxCount) {
+        double[] table = m_NLogN;
+        return (table != null && table.length > maxCount) ? table : createNLogNTable(maxCount);
+    }
+
+    /**
+     * Creates the running sum of c * ln(c) over the class counts on each side of the sufficient statistics
+     *
+     * @param currentStats the current Sufficient statistics array
+     * @param nLogN the n * ln(n) table
+     * @return array holding the sum for the left side and the right side
+     */
+    protected double[] createLogTerms(int[][] currentStats, double[] nLogN) {
+        double[] logTerms = new double[2];
+        for (int i = 0; i < currentStats[0].length - 1; i++) {
+            logTerms[0] += nLogN[currentStats[0][i]];
+            logTerms[1] += nLogN[currentStats[1][i]];
+        }
+        return logTerms;
+    }
+
+    /**
+     * Moves one class value from the right side to the left side, keeping the running c * ln(c) sums
+     * up to date with a constant number of table lookups
+     *
+     * @param classValue the class value of the instance to move
+     * @param currentStats the current Sufficient statistics array
+     * @param logTerms the running sums for the left side and the right side
+     * @param nLogN the n * ln(n) table
+     */
+    protected void updateSufficientStatistics(int classValue, int[][] currentStats, double[] logTerms, double[] nLogN) {
+        int leftCount = currentStats[0][classValue];
+        int rightCount = currentStats[1][classValue];
+
+        logTerms[0] += nLogN[leftCount + 1] - nLogN[leftCount];
+        logTerms[1] += nLogN[rightCount - 1] - nLogN[rightCount];
+
+        updateSufficientStatistics(classValue, currentStats);
+    }
+
+    /**
+     * Used to calculate expected entropy for a certain binary split from the running c * ln(c) sums,
+     * the entropy of a side with n instances is (n * ln(n) - sum of c * ln(c)) / (n * ln(2))
+     *
+     * @param inputStats the input sufficent statistics
+     * @param logTerms the running sums for the left side and the right side
+     * @param nLogN the n * ln(n) table
+     * @return a entropy value for the given statistics
+     */
+    protected double calculateExpectedEntropy(int[][] inputStats, double[] logTerms, double[] nLogN) {
+        int numClasses = inputStats[0].length - 1;
+        int totalLeft = inputStats[0][numClasses];
+        int totalRight = inputStats[1][numClasses];
+
+        return (nLogN[totalLeft] - logTerms[0] + nLogN[totalRight] - logTerms[1]) / ((totalLeft + totalRight) * Math.log(2));
+    }
+
+    /**
+     * Used to calculate the entropy of a node before a split from the class values of its instances, in the
+     * same way as calculateExpectedEntropy so a split that does not change the class proportions has no gain
+     *
+     * @param classValues the class value of each instance at the node
+     * @param numClasses the number of classes
+     * @return a value of entropy for the class values given
+     */
+    protected double calculateExpectedEntropyBeforeSplit(int[] classValues, int numClasses) {
+        int[] classValueCount = new int[numClasses];
+
+        //getting a class value count
+        for (int classValue : classValues) {
+            classValueCount[classValue]++;
+        }
+
+        double finalValue = 0.0;
+        for (int count : classValueCount) {
+            double probValue = (double) count / classValues.length;
+            if (probValue != 0.0) {
+                finalValue -= probValue * (Math.log(probValue) / Math.log(2));
+            }
+        }
+        return finalValue;
+    }
+
+    /**
+     * Used to calculate expected entropy for a certain binary split
+     *
+     * @param inputStats the input sufficent statistics
+     * @return a entropy value for the given statistics
+     */
+    protected double calculateExpectedEntropy(int[][] inputStats){
+
+        double left = 0.0,out1Left,probLeft;
+        int totalLeft = inputStats[0][inputStats[0].length - 1];
+        double right = 0.0,out1Right,probRight;
+        int totalRight = inputStats[1][inputStats[1].length - 1 ];
+        int totalInstances = totalLeft + totalRight;
+
+        for (int i = 0; i < inputStats[0].length - 1; i++) {
+
+            //Calculate entropy left side
+            probLeft = (double) inputStats[0][i]/totalLeft;
+            //Making sure it is not zero or it will be NaN - Have to treat it as a zero for computational reasons
+            if(probLeft != 0.0){
+                out1Left = Math.log((double) probLeft)/Math.log(2);
+                left -= (probLeft * out1Left);
+            }
+
+            //Calculate entropy right side
+            probRight = (double) inputStats[1][i]/totalRight;
             //Making sure it is not zero or it will be NaN - Have to treat it as a zero for computational reasons
             if(probRight != 0.0){
                 out1Right = Math.log((double) inputStats[1][i]/totalRight)/Math.log(2);
@@ -304,165 +1473,1561 @@ public class FilterTree extends RandomizableClassifier {
             }
 
         }
-        return ((double) totalLeft/totalInstances * left) + ((double) totalRight/totalInstances * right);
+        return ((double) totalLeft/totalInstances * left) + ((double) totalRight/totalInstances * right);
+    }
+
+
+
+    /**
+     * Checks if two neighbouring sorted values can be separated by a split, which is not the case when
+     * they are equal or so close that the split value between them equals the lower one
+     *
+     * @param lowerValue the lower value
+     * @param upperValue the upper value
+     * @return true if a split value can be placed between the two values
+     */
+    protected boolean isSplitPoint(double lowerValue, double upperValue) {
+        return (lowerValue + upperValue)/2.0 != lowerValue;
+    }
+
+    /**
+     * Returns the class of a block of values in a sorted column that cannot be separated by a split
+     *
+     * @param sortedValues the sorted values of the attribute
+     * @param sortedClassValues the class values in the same order
+     * @param start the first position of the block
+     * @return the class shared by all instances in the block, or -1 if the block has more than one class
+     */
+    protected int blockClass(double[] sortedValues, int[] sortedClassValues, int start) {
+        int classValue = sortedClassValues[start];
+        for (int j = start + 1; j < sortedValues.length && !isSplitPoint(sortedValues[j - 1], sortedValues[j]); j++) {
+            if (sortedClassValues[j] != classValue) {
+                return -1;
+            }
+        }
+        return classValue;
+    }
+
+    /**
+     * Finds the best binary split on one attribute. The column is scanned through its own sorted index
+     * array, so the node data is never reordered and several attributes can be evaluated at once.
+     * Only boundary points are scored: positions where the value changes and the blocks of equal values
+     * on either side are not both made up of the same single class, as the best split cannot lie anywhere else.
+     *
+     * @param data the filtered data of the node
+     * @param attIndex the index of the attribute to evaluate
+     * @param counters the counters the search adds to
+     * @return the split with the lowest expected entropy, or null if all values of the attribute are the same
+     */
+    protected SplitCandidate evaluateAttribute(NodeColumns data, int attIndex, SearchCounters counters) {
+
+        double[] values = data.column(attIndex);
+        long start = System.nanoTime();
+        int[] sortedIndices = Utils.sortWithNoMissingValues(values);//Sorting Attributes
+
+        //Gathering the values and class values in sorted order so the scan reads them sequentially
+        double[] sortedValues = new double[sortedIndices.length];
+        int[] sortedClassValues = new int[sortedIndices.length];
+        for (int j = 0; j < sortedIndices.length; j++) {
+            sortedValues[j] = values[sortedIndices[j]];
+            sortedClassValues[j] = data.ClassValues[sortedIndices[j]];
+        }
+        sortedIndices = null;
+        long sorted = System.nanoTime();
+        counters.SortTime.add(sorted - start);
+
+        int[][] currentStats = createSufficientStatistics(sortedClassValues, data.NumClasses);//Creating the current sufficient statistics
+        double[] nLogN = getNLogNTable(sortedClassValues.length);
+        double[] logTerms = createLogTerms(currentStats, nLogN);
+
+        boolean lock = false;
+        double minExpectedEntropy = 0.0; //Best Expected entropy for a split -> want to minimise this
+        double bestSplitValue = 0.0; //best Split value for the attribute
+        double currentExpectedEntropy; //Current entropy for a split
+        double newSplitValue; //Current split value
+        double oldVal = sortedValues[0];
+        int leftBlockClass = blockClass(sortedValues, sortedClassValues, 0); //Class of the block left of the split point
+        int rightBlockClass;
+        long skipped = 0;
+        long evaluated = 0;
+
+        //Going through the attribute values and working out the split points
+        for (int j = 1; j < sortedValues.length; j++) {
+
+            //If the old value and the new value are the same the split would separate equal values
+            if(!isSplitPoint(oldVal, sortedValues[j])){
+                skipped++;
+            } else {
+                rightBlockClass = blockClass(sortedValues, sortedClassValues, j);
+
+                if(leftBlockClass != -1 && leftBlockClass == rightBlockClass){
+                    //Not a boundary point, both blocks have the same single class
+                    skipped++;
+                } else {
+                    //Calculating current expected entropy based on the current sufficient statistics
+                    currentExpectedEntropy = calculateExpectedEntropy(currentStats, logTerms, nLogN);
+                    evaluated++;
+
+                    //The running sums drift by rounding, so a split close to the best is compared on its entropy from the counts
+                    if(currentExpectedEntropy - minExpectedEntropy <= ENTROPY_EPS || (!lock)){
+                        currentExpectedEntropy = calculateExpectedEntropy(currentStats);
+                    }
+
+                    if((currentExpectedEntropy < minExpectedEntropy) || (!lock)){
+
+                        //Calculating Split Value
+                        newSplitValue = (oldVal + sortedValues[j])/2.0;
+
+                        minExpectedEntropy = currentExpectedEntropy;
+                        bestSplitValue = newSplitValue;
+                        lock = true;//Setting lock so it can't get in the loop unless it meets first Criterion.
+                    }
+                }
+                leftBlockClass = rightBlockClass;
+            }
+
+            oldVal = sortedValues[j];
+            //Move sufficient statistics to the left and get the value
+            updateSufficientStatistics(sortedClassValues[j],currentStats,logTerms,nLogN);
+        }
+        counters.CandidatesSkipped.add(skipped);
+        counters.CandidatesEvaluated.add(evaluated);
+        counters.SplitSearchTime.add(System.nanoTime() - sorted);
+
+        return lock ? new SplitCandidate(attIndex, bestSplitValue, minExpectedEntropy) : null;
+    }
+
+    /**
+     * Creates the edges of quantile bins for a column. The quantiles are taken from an evenly spaced
+     * sample of the column so the column itself does not have to be sorted.
+     *
+     * @param values the values of the attribute
+     * @param numBins the number of bins to create
+     * @return the distinct bin edges in ascending order, all greater than the smallest sampled value
+     */
+    protected double[] createBinEdges(double[] values, int numBins) {
+
+        //Sampling the column at a fixed stride
+        int sampleSize = (int) Math.min(values.length, (long) numBins * 64);
+        double[] sample = new double[sampleSize];
+        double stride = (double) values.length / sampleSize;
+        for (int i = 0; i < sampleSize; i++) {
+            sample[i] = values[(int) (i * stride)];
+        }
+        Arrays.sort(sample);
+
+        //Taking the quantiles of the sample as edges, skipping repeated values
+        double[] edges = new double[numBins - 1];
+        int numEdges = 0;
+        double previous = sample[0];
+        for (int b = 1; b < numBins; b++) {
+            double edge = sample[(int) ((long) b * sampleSize / numBins)];
+            if (edge > previous) {
+                edges[numEdges++] = edge;
+                previous = edge;
+            }
+        }
+        return Arrays.copyOf(edges, numEdges);
+    }
+
+    /**
+     * Returns the bin of a value, bin b holds the values from edge b - 1 up to but excluding edge b
+     *
+     * @param binEdges the bin edges in ascending order
+     * @param value the value to look up
+     * @return the index of the bin
+     */
+    protected int binIndex(double[] binEdges, double value) {
+        int position = Arrays.binarySearch(binEdges, value);
+        return position >= 0 ? position + 1 : -position - 1;
+    }
+
+    /**
+     * Finds an approximate best binary split on one attribute by counting the classes in quantile bins
+     * and only considering the bin edges as split values. No sorting of the column is needed.
+     *
+     * @param data the filtered data of the node
+     * @param attIndex the index of the attribute to evaluate
+     * @param numBins the number of quantile bins
+     * @param counters the counters the search adds to
+     * @return the bin edge with the lowest expected entropy, or null if no edge splits the instances
+     */
+    protected SplitCandidate evaluateAttributeHistogram(NodeColumns data, int attIndex, int numBins, SearchCounters counters) {
+
+        double[] values = data.column(attIndex);
+        long start = System.nanoTime();
+        double[] binEdges = createBinEdges(values, numBins);
+        int numClasses = data.NumClasses;
+
+        //Counting the classes in each bin
+        int[][] binCounts = new int[binEdges.length + 1][numClasses];
+        for (int i = 0; i < values.length; i++) {
+            binCounts[binIndex(binEdges, values[i])][data.ClassValues[i]]++;
+        }
+
+        //Starting with all instances on the right side
+        int[][] currentStats = new int[2][numClasses+1];
+        for (int[] bin : binCounts) {
+            for (int c = 0; c < numClasses; c++) {
+                currentStats[1][c] += bin[c];
+            }
+        }
+        currentStats[1][numClasses] = values.length;
+        double[] nLogN = getNLogNTable(values.length);
+        double[] logTerms = createLogTerms(currentStats, nLogN);
+
+        boolean lock = false;
+        double minExpectedEntropy = 0.0; //Best Expected entropy for a split -> want to minimise this
+        double bestSplitValue = 0.0; //best Split value for the attribute
+        double currentExpectedEntropy; //Current entropy for a split
+
+        //Moving one bin at a time to the left side, the split value is the edge above the bin
+        for (int b = 0; b < binEdges.length; b++) {
+            for (int c = 0; c < numClasses; c++) {
+                int count = binCounts[b][c];
+                if (count > 0) {
+                    logTerms[0] += nLogN[currentStats[0][c] + count] - nLogN[currentStats[0][c]];
+                    logTerms[1] += nLogN[currentStats[1][c] - count] - nLogN[currentStats[1][c]];
+                    currentStats[0][c] += count;
+                    currentStats[1][c] -= count;
+                    currentStats[0][numClasses] += count;
+                    currentStats[1][numClasses] -= count;
+                }
+            }
+
+            //Edges are taken from a sample, so a side can still be empty
+            if (currentStats[0][numClasses] == 0 || currentStats[1][numClasses] == 0) {
+                continue;
+            }
+
+            currentExpectedEntropy = calculateExpectedEntropy(currentStats, logTerms, nLogN);
+            counters.CandidatesEvaluated.increment();
+            if(currentExpectedEntropy - minExpectedEntropy <= ENTROPY_EPS || (!lock)){
+                currentExpectedEntropy = calculateExpectedEntropy(currentStats);
+            }
+            if((currentExpectedEntropy < minExpectedEntropy) || (!lock)){
+                minExpectedEntropy = currentExpectedEntropy;
+                bestSplitValue = binEdges[b];
+                lock = true;
+            }
+        }
+        counters.SplitSearchTime.add(System.nanoTime() - start);
+
+        return lock ? new SplitCandidate(attIndex, bestSplitValue, minExpectedEntropy) : null;
+    }
+
+    /**
+     * Evaluates one attribute, using the approximate histogram search if the node is large enough
+     *
+     * @param data the filtered data of the node
+     * @param attIndex the index of the attribute to evaluate
+     * @param counters the counters the search adds to
+     * @return the best split found for the attribute, or null if there is none
+     */
+    protected SplitCandidate evaluateSplitAttribute(NodeColumns data, int attIndex, SearchCounters counters) {
+        if (m_HistogramBins > 1 && data.ClassValues.length >= m_HistogramThreshold) {
+            return evaluateAttributeHistogram(data, attIndex, m_HistogramBins, counters);
+        }
+        return evaluateAttribute(data, attIndex, counters);
+    }
+
+    /**
+     * Finds the best binary split over all attributes of the filtered instances. Ties are broken in favour
+     * of the attribute with the lowest index, so the result does not depend on whether attributes are
+     * evaluated in parallel.
+     *
+     * @param data the filtered data of the node
+     * @param parallel whether to evaluate the attributes as tasks in the fork/join pool
+     * @param counters the counters the search adds to
+     * @return the best split, or null if no split exists
+     */
+    protected SplitCandidate findBestSplit(NodeColumns data, boolean parallel, SearchCounters counters) {
+
+        SplitCandidate[] attributeSplits = new SplitCandidate[data.NumAttributes];
+
+        if(parallel){
+            List<AttributeSplitTask> tasks = new ArrayList<>(attributeSplits.length);
+            for (int i = 0; i < attributeSplits.length; i++) {
+                tasks.add(new AttributeSplitTask(data, i, counters));
+            }
+            ForkJoinTask.invokeAll(tasks);
+            for (int i = 0; i < attributeSplits.length; i++) {
+                attributeSplits[i] = tasks.get(i).join();
+            }
+        } else {
+            for (int i = 0; i < attributeSplits.length; i++) {
+                attributeSplits[i] = evaluateSplitAttribute(data, i, counters);
+            }
+        }
+
+        //Keeping the first attribute with the lowest expected entropy
+        SplitCandidate bestSplit = null;
+        for (SplitCandidate split : attributeSplits) {
+            if(split != null && (bestSplit == null || split.ExpectedEntropy < bestSplit.ExpectedEntropy)){
+                bestSplit = split;
+            }
+        }
+        return bestSplit;
+    }
+
+    /**
+     * Finds the split for an unexpanded node. If the node is worth splitting, the split and the seeds of the
+     * children are stored in the node information and the rows of the node are partitioned into the two sides.
+     *
+     * @param newNode the information of the unexpanded node
+     * @return true if the node should be split, false if it should become a leaf node
+     * @throws Exception if the filter could not be applied
+     */
+    protected boolean findNodeSplit(UnexpandedNodeInfo newNode) throws Exception {
+
+        NodeBuildEvent event = new NodeBuildEvent();
+        event.begin();
+        boolean split = searchNodeSplit(newNode, event, m_BuildCounters);
+        if (event.shouldCommit()) {
+            event.depth = newNode.Depth;
+            event.numInstances = newNode.size();
+            event.split = split;
+            event.informationGain = split ? newNode.InformationGain / newNode.size() : 0;
+            event.commit();
+        }
+        return split;
+    }
+
+    /**
+     * Finds the split for a leaf from the instances it collected while the tree was updated, in the same way
+     * as findNodeSplit. The work done is not added to the measures of the build, and no JFR event is emitted.
+     *
+     * @param newNode the information of the unexpanded node holding the collected instances
+     * @return true if the node should be split, false if it should stay a leaf node
+     * @throws Exception if the filter could not be applied
+     */
+    protected boolean findLeafSplit(UnexpandedNodeInfo newNode) throws Exception {
+        return searchNodeSplit(newNode, null, new SearchCounters());
+    }
+
+    /**
+     * Does the work of findNodeSplit and findLeafSplit
+     *
+     * @param newNode the information of the unexpanded node
+     * @param event the JFR event of the node, for the number of filtered attributes, or null
+     * @param counters the counters the search adds to
+     * @return true if the node should be split, false if it should become a leaf node
+     * @throws Exception if the filter could not be applied
+     */
+    protected boolean searchNodeSplit(UnexpandedNodeInfo newNode, NodeBuildEvent event, SearchCounters counters) throws Exception {
+
+        //Checking stopping criteria - Certain Number of instances met, as specified by the user, or maximum depth
+        if((newNode.size()) <= m_MinInstances || (m_MaxDepth > 0 && newNode.Depth >= m_MaxDepth)){
+            return false;
+        }
+
+        //Random numbers of the node only depend on its position in the tree, so subtrees can be built in any order
+        Random nodeRandom = new Random(newNode.Seed);
+
+        //Small nodes split on the input attributes or on the output of the filter fitted at their parent
+        Filter filter;
+        byte filterChoice = FILTER_FITTED;
+        if (m_SmallNodeSize > 0 && newNode.size() <= m_SmallNodeSize) {
+            if (m_SmallNodePolicy == POLICY_INHERIT && newNode.ParentFilter != null) {
+                filter = newNode.ParentFilter;
+                filterChoice = FILTER_INHERITED;
+            } else {
+                filter = new AllFilter();
+                filter.setInputFormat(new Instances(newNode.Instances, 0));
+                filterChoice = FILTER_IDENTITY;
+            }
+        } else {
+            //Making a deep copy of the data
+            filter = Filter.makeCopy(m_Filter);
+
+            //Allowing randomizable filter if is of type randomizable
+            if (filter instanceof Randomizable) {
+                ((Randomizable) filter).setSeed(nodeRandom.nextInt());
+            }
+
+            //Setting up input format of filter, only the header is given as the instances are shared by all nodes
+            filter.setInputFormat(new Instances(newNode.Instances, 0));
+        }
+
+        //Fitting the filter on a sample of a large node, it is then applied to all rows of the node
+        long start = System.nanoTime();
+        if (filterChoice == FILTER_FITTED && m_FilterSampleSize > 0 && newNode.size() > m_FilterSampleSize && !(filter instanceof AllFilter)) {
+            fitFilter(filter, newNode, sampleRows(newNode, m_FilterSampleSize, new Random(nodeRandom.nextLong())));
+            long fitted = System.nanoTime();
+            counters.FilterFitTime.add(fitted - start);
+            start = fitted;
+        }
+        //Filtering the instances based on a filter specified by the user, straight into primitive columns
+        //that keep the order of the rows of the node
+        NodeColumns columns;
+        if (filterChoice == FILTER_INHERITED) {
+            //The fitted filter is shared with the sibling, which may be filtering its rows at the same time
+            synchronized (filter) {
+                columns = new NodeColumns(filter, newNode);
+            }
+        } else {
+            columns = new NodeColumns(filter, newNode);
+        }
+        counters.FilterTime.add(System.nanoTime() - start);
+        if (event != null) {
+            event.numAttributes = columns.NumAttributes;
+        }
+
+        boolean parallel = m_Pool != null && newNode.size() >= m_ParallelCutoff;
+        double informationGain;
+
+        //Calculating the entropy of the node - used to calculate information gain
+        double entropyOfCurrentNode = calculateExpectedEntropyBeforeSplit(columns.ClassValues, columns.NumClasses);
+
+        //Iterating through the attributes
+        SplitCandidate bestSplit = findBestSplit(columns, parallel && m_ParallelAttributeSearch, counters);
+
+        //Check stop criterion again if information gain has not increased
+        if(bestSplit == null || (informationGain = entropyOfCurrentNode - bestSplit.ExpectedEntropy) <= 0.0){
+
+            //Clean up
+            bestSplit = null;
+            columns = null;
+            filter = null;
+
+            return false;
+        }
+
+        double[] bestColumn = columns.column(bestSplit.AttributeIndex);
+        columns = null;
+
+        //An inherited filter is the parent's own filter, so the tree holds it once
+        newNode.SplitFilter = filter;
+        newNode.SplitFilterChoice = filterChoice;
+        newNode.SplitAttribute = filter.getOutputFormat().attribute(bestSplit.AttributeIndex);
+        newNode.SplitValue = bestSplit.SplitValue;
+        newNode.InformationGain = informationGain * newNode.size();
+
+        //Splitting the rows of the node into two ranges base on the filter value
+        newNode.Mid = partitionRows(newNode, bestColumn, bestSplit.SplitValue);
+
+        newNode.LeftSeed = nodeRandom.nextLong();
+        newNode.RightSeed = nodeRandom.nextLong();
+
+        return true;
+    }
+
+    /**
+     * Transforms an unexpanded node whose split has been found into a split node with two unexpanded children
+     *
+     * @param node the unexpanded node, findNodeSplit must have returned true for it
+     * @return the information of the new split node
+     */
+    protected SplitNodeInfo makeSplitNode(Node node) {
+
+        UnexpandedNodeInfo newNode = ((UnexpandedNodeInfo)node.NodeInfo);
+
+        SplitNodeInfo splitNodeInfo = new SplitNodeInfo(newNode.SplitAttribute,newNode.SplitValue,newNode.SplitFilter);
+        splitNodeInfo.FilterChoice = newNode.SplitFilterChoice;
+        UnexpandedNodeInfo left = new UnexpandedNodeInfo(newNode.Instances, newNode.Spill, newNode.Rows, newNode.From, newNode.Mid,
+                newNode.Depth + 1, newNode.LeftSeed);
+        UnexpandedNodeInfo right = new UnexpandedNodeInfo(newNode.Instances, newNode.Spill, newNode.Rows, newNode.Mid, newNode.To,
+                newNode.Depth + 1, newNode.RightSeed);
+        left.ParentFilter = newNode.SplitFilter;
+        right.ParentFilter = newNode.SplitFilter;
+        splitNodeInfo.Left = new Node(left);
+        splitNodeInfo.Right = new Node(right);
+
+        //Transforming node into a split node
+        node.NodeInfo = splitNodeInfo;
+        return splitNodeInfo;
+    }
+
+    /**
+     * Method that processes a node. Assumes that the given node is unexpanded. Turns the node
+     * into a leaf node or split node as appropriate by replacing the node information.
+     *
+     * @param node the unexpanded node to process
+     * @return the node with updated node information, turning it into a split node or leaf node
+     */
+    protected Node splitNode(Node node) throws Exception {
+
+
+        UnexpandedNodeInfo newNode = ((UnexpandedNodeInfo)node.NodeInfo);
+
+        if(!findNodeSplit(newNode)){
+
+            newNode = null;
+
+            return makeLeafNode(node);
+        }
+
+        boolean parallel = m_Pool != null && newNode.size() >= m_ParallelCutoff;
+        SplitNodeInfo splitNodeInfo = makeSplitNode(node);
+
+        //Clean up
+        newNode = null;
+
+        if(parallel){
+            //Process left side of tree in another task while this one processes the right side
+            SplitNodeTask leftTask = new SplitNodeTask(splitNodeInfo.Left);
+            leftTask.fork();
+            splitNodeInfo.Right = splitNode(splitNodeInfo.Right);
+            splitNodeInfo.Left = joinTask(leftTask);
+            return node;
+        }
+
+        //Process left side of tree
+        splitNodeInfo.Left = splitNode(splitNodeInfo.Left);
+
+        //process right side of tree
+        splitNodeInfo.Right = splitNode(splitNodeInfo.Right);
+
+        return node;
+
+    }
+
+    /**
+     * Grows the tree best-first: the unexpanded node whose split reduces the total entropy most is split next, until
+     * the leaf budget or time budget is used up. Nodes that are still waiting then become leaf nodes.
+     *
+     * @param root the unexpanded root node
+     * @return the root node
+     * @throws Exception if the filter could not be applied
+     */
+    protected Node buildBestFirst(Node root) throws Exception {
+
+        long deadline = m_TimeBudget > 0 ? System.nanoTime() + (long) (m_TimeBudget * 1e9) : Long.MAX_VALUE;
+
+        //Largest reduction in total entropy first, ties go to the node queued first
+        PriorityQueue<Node> queue = new PriorityQueue<>((a, b) -> {
+            UnexpandedNodeInfo infoA = (UnexpandedNodeInfo) a.NodeInfo;
+            UnexpandedNodeInfo infoB = (UnexpandedNodeInfo) b.NodeInfo;
+            int byGain = Double.compare(infoB.InformationGain, infoA.InformationGain);
+            return byGain != 0 ? byGain : Long.compare(infoA.Order, infoB.Order);
+        });
+
+        m_QueueOrder = 0;
+        int numLeaves = queueEvaluatedNode(root, findNodeSplit((UnexpandedNodeInfo) root.NodeInfo), queue);
+
+        //Every node in the queue would be a leaf if growth stopped now, splitting one adds one leaf
+        while (!queue.isEmpty() && (m_MaxLeaves <= 0 || numLeaves + queue.size() < m_MaxLeaves)
+                && System.nanoTime() < deadline) {
+
+            Node node = queue.poll();
+            boolean parallel = m_Pool != null && ((UnexpandedNodeInfo) node.NodeInfo).size() >= m_ParallelCutoff;
+            SplitNodeInfo splitNodeInfo = makeSplitNode(node);
+
+            UnexpandedNodeInfo left = (UnexpandedNodeInfo) splitNodeInfo.Left.NodeInfo;
+            UnexpandedNodeInfo right = (UnexpandedNodeInfo) splitNodeInfo.Right.NodeInfo;
+            if (parallel) {
+                //Finding the split of the left child in another task while this one works on the right child
+                ForkJoinTask<Boolean> leftTask = ForkJoinTask.adapt(() -> findNodeSplit(left)).fork();
+                boolean splitRight = findNodeSplit(right);
+                boolean splitLeft = joinTask(leftTask);
+                numLeaves += queueEvaluatedNode(splitNodeInfo.Left, splitLeft, queue);
+                numLeaves += queueEvaluatedNode(splitNodeInfo.Right, splitRight, queue);
+            } else {
+                numLeaves += queueEvaluatedNode(splitNodeInfo.Left, findNodeSplit(left), queue);
+                numLeaves += queueEvaluatedNode(splitNodeInfo.Right, findNodeSplit(right), queue);
+            }
+        }
+
+        //Nodes still waiting to be split become leaf nodes
+        for (Node node : queue) {
+            makeLeafNode(node);
+        }
+        return root;
+    }
+
+    /**
+     * Adds a node whose split has already been looked for to the best-first queue, or turns it into a leaf node
+     *
+     * @param node the unexpanded node
+     * @param split the result of findNodeSplit for the node
+     * @param queue the queue of nodes waiting to be split
+     * @return 1 if the node was turned into a leaf node, 0 otherwise
+     */
+    protected int queueEvaluatedNode(Node node, boolean split, PriorityQueue<Node> queue) {
+        if (split) {
+            ((UnexpandedNodeInfo) node.NodeInfo).Order = m_QueueOrder++;
+            queue.add(node);
+            return 0;
+        }
+        makeLeafNode(node);
+        return 1;
+    }
+
+    /**
+     * Grows the tree from the unexpanded root node, best-first if a leaf or time budget is set and depth-first otherwise
+     *
+     * @param root the unexpanded root node
+     * @return the root node
+     * @throws Exception if the filter could not be applied
+     */
+    protected Node growTree(Node root) throws Exception {
+        if (m_MaxLeaves > 0 || m_TimeBudget > 0) {
+            return buildBestFirst(root);
+        }
+        return splitNode(root);
+    }
+
+    /**
+     * Builds the classifier
+     * @param instances that are used to build the classifier
+     * @throws Exception
+     */
+    @Override
+    public void buildClassifier(Instances instances) throws Exception {
+
+        //Setting random seed of random object
+        m_Random = instances.numInstances() > 0 ? instances.getRandomNumberGenerator(getSeed()) : new Random(getSeed());
+
+        buildTree(instances, null, allRows(instances.numInstances()));
+    }
+
+    /**
+     * Builds the classifier out of core from training data in a columnar spill file. Only the row indices
+     * and the filtered data of the node being split are held on the heap, and the latter is also moved to
+     * a memory-mapped file for nodes above the spill threshold. Filters other than AllFilter hold the rows
+     * of a node while they are fitted, so for those the filter sample size should be set as well. The tree
+     * is the same as the one built in memory from the same values, whatever the spill threshold: the rows of
+     * every node reach its filter in the same order. ArffSaver and CSVSaver write 6 decimal places by default,
+     * so a file saved from instances in memory may not hold exactly their values.
+     *
+     * @param data the training data, see ColumnarSpillFile.create
+     * @throws Exception if the classifier could not be built
+     */
+    public void buildClassifier(ColumnarSpillFile data) throws Exception {
+
+        //Seeding the same way as Instances.getRandomNumberGenerator
+        m_Random = new Random(getSeed());
+        m_Random.setSeed(data.instance(m_Random.nextInt(data.numInstances())).toStringNoWeight().hashCode() + getSeed());
+
+        buildTree(data.getHeader(), data, allRows(data.numInstances()));
+    }
+
+    /**
+     * Builds the classifier from a sample of the training data given as row indices, which may repeat. The
+     * training data is only read, so the trees of an ensemble can be built from the same data concurrently.
+     *
+     * @param instances the training instances, or only their header for out-of-core training
+     * @param spill the training data for out-of-core training, or null
+     * @param rows the indices of the training instances to use, owned by the tree while it is built
+     * @throws Exception if the classifier could not be built
+     */
+    protected void buildClassifier(Instances instances, ColumnarSpillFile spill, int[] rows) throws Exception {
+        m_Random = new Random(getSeed());
+        buildTree(instances, spill, rows);
+    }
+
+    /**
+     * Creates the indices of all training instances
+     *
+     * @param numInstances the number of training instances
+     * @return the indices in order
+     */
+    protected static int[] allRows(int numInstances) {
+        int[] rows = new int[numInstances];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = i;
+        }
+        return rows;
+    }
+
+    /**
+     * Splits the training rows at random into rows the tree is grown from and rows held out for pruning,
+     * keeping the order of both
+     *
+     * @param rows the indices of the training instances
+     * @param fraction the fraction of the rows to hold out
+     * @param random the random number generator choosing the held-out rows
+     * @return the rows for growing and the held-out rows
+     */
+    protected static int[][] holdOutRows(int[] rows, double fraction, Random random) {
+        int numHeldOut = (int) Math.round(rows.length * Math.min(fraction, 1));
+        boolean[] heldOut = new boolean[rows.length];
+        for (int i = 0; i < numHeldOut; i++) {
+            //Floyd's sampling of numHeldOut distinct positions
+            int j = random.nextInt(rows.length - numHeldOut + i + 1);
+            heldOut[heldOut[j] ? rows.length - numHeldOut + i : j] = true;
+        }
+        int[][] split = {new int[rows.length - numHeldOut], new int[numHeldOut]};
+        int grow = 0;
+        int prune = 0;
+        for (int i = 0; i < rows.length; i++) {
+            if (heldOut[i]) {
+                split[1][prune++] = rows[i];
+            } else {
+                split[0][grow++] = rows[i];
+            }
+        }
+        return split;
+    }
+
+    /**
+     * Grows the tree from the training data and compiles it for inference
+     *
+     * @param instances the training instances, or only their header for out-of-core training
+     * @param spill the training data for out-of-core training, or null
+     * @param rows the indices of the training instances
+     * @throws Exception if the classifier could not be built
+     */
+    protected void buildTree(Instances instances, ColumnarSpillFile spill, int[] rows) throws Exception {
+
+        m_BuildCounters = new SearchCounters();
+        m_SubtreeClassCounts = null;
+        m_Header = new Instances(instances, 0);
+        m_NodesBeforePruning = 0;
+        m_FiltersBeforePruning = 0;
+        m_LatencyBeforePruning = 0;
+        m_LatencyAfterPruning = 0;
+
+        //Holding out rows for reduced-error pruning, the tree is grown from the others
+        int[] pruneRows = new int[0];
+        if (m_PruneFraction > 0) {
+            int[][] split = holdOutRows(rows, m_PruneFraction, new Random(m_Random.nextLong()));
+            rows = split[0];
+            pruneRows = split[1];
+        }
+
+        //Creating rootNode, all nodes share the instances and work on ranges of one array of row indices
+        Node newNode = new Node(new UnexpandedNodeInfo(instances, spill, rows, 0, rows.length, 0, m_Random.nextLong()));
+        m_ScratchRows = new int[rows.length];
+
+        //Every node has at most as many instances as the root, so one table serves the whole build
+        m_NLogN = createNLogNTable(rows.length);
+
+        try {
+            if (m_NumExecutionSlots == 1) {
+                //Processing Node
+                m_RootNode = growTree(newNode);
+                compileTree();
+                pruneTree(instances, spill, pruneRows);
+                return;
+            }
+
+            //Processing Node with subtrees built in parallel
+            m_Pool = new ForkJoinPool(m_NumExecutionSlots > 0 ? m_NumExecutionSlots : Runtime.getRuntime().availableProcessors());
+            try {
+                ForkJoinTask<Node> rootTask = ForkJoinTask.adapt(() -> growTree(newNode));
+                m_Pool.execute(rootTask);
+                m_RootNode = joinTask(rootTask);
+            } finally {
+                m_Pool.shutdown();
+                m_Pool = null;
+            }
+            compileTree();
+            pruneTree(instances, spill, pruneRows);
+        } finally {
+            m_NLogN = null;
+            m_ScratchRows = null;
+        }
+    }
+
+    /**
+     * Returns the class counts of the nodes on the path of an instance from the root to its leaf. Node
+     * seeds only depend on the position of a node, so growing depth-first with a larger minimum number of
+     * instances gives this tree with every node of at most that many instances turned into a leaf. A tree
+     * built with the smallest -M of a grid therefore gives the predictions for all of them: the tree for
+     * a larger -M predicts the class distribution of the first node on the path that it does not split.
+     *
+     * @param instance the instance
+     * @return the class counts of the nodes on the path, starting with the root
+     * @throws Exception if the instance could not be filtered
+     */
+    protected List<double[]> pathClassCounts(Instance instance) throws Exception {
+
+        List<double[]> path = new ArrayList<>();
+        Node node = m_RootNode;
+        while (node.NodeInfo instanceof SplitNodeInfo) {
+            SplitNodeInfo splitNode = (SplitNodeInfo) node.NodeInfo;
+            path.add(subtreeClassCounts(node));
+            node = splitNodeValue(splitNode, instance) < splitNode.SplitValue ? splitNode.Left : splitNode.Right;
+        }
+        path.add(((LeafNodeInfo) node.NodeInfo).ClassCountForString);
+        return path;
+    }
+
+    /**
+     * Returns the class counts of the training instances that reached a node, summed over its leaves
+     *
+     * @param node the node
+     * @return the class counts, cached for split nodes
+     */
+    protected synchronized double[] subtreeClassCounts(Node node) {
+        if (node.NodeInfo instanceof LeafNodeInfo) {
+            return ((LeafNodeInfo) node.NodeInfo).ClassCountForString;
+        }
+        if (m_SubtreeClassCounts == null) {
+            m_SubtreeClassCounts = new IdentityHashMap<>();
+        }
+        double[] counts = m_SubtreeClassCounts.get(node);
+        if (counts == null) {
+            SplitNodeInfo splitNode = (SplitNodeInfo) node.NodeInfo;
+            counts = subtreeClassCounts(splitNode.Left).clone();
+            double[] rightCounts = subtreeClassCounts(splitNode.Right);
+            for (int c = 0; c < counts.length; c++) {
+                counts[c] += rightCounts[c];
+            }
+            m_SubtreeClassCounts.put(node, counts);
+        }
+        return counts;
+    }
+
+    /**
+     * Returns the value of the split attribute of a split node for an instance, filtering it with the node's
+     * filter on the node objects rather than the flattened tree
+     *
+     * @param splitNode the split node
+     * @param instance the instance
+     * @return the value compared with the split value
+     * @throws Exception if the instance could not be filtered
+     */
+    protected double splitNodeValue(SplitNodeInfo splitNode, Instance instance) throws Exception {
+        if (splitNode.Filter instanceof AllFilter) {
+            return instance.value(splitNode.SplitAttribute.index());
+        }
+
+        //The filter may be shared with threads classifying instances
+        synchronized (splitNode.Filter) {
+            return filterValue(splitNode.Filter, instance, splitNode.SplitAttribute.index());
+        }
+    }
+
+    /**
+     * Prunes the grown tree if reduced-error pruning or collapsing is switched on and compiles it again. The
+     * number of nodes and filters and the scoring latency are recorded before and after, the latency on the
+     * held-out instances, or on the training instances if none are held out.
+     *
+     * @param instances the training instances, or only their header for out-of-core training
+     * @param spill the training data for out-of-core training, or null
+     * @param pruneRows the indices of the held-out instances
+     * @throws Exception if the held-out instances could not be filtered
+     */
+    protected void pruneTree(Instances instances, ColumnarSpillFile spill, int[] pruneRows) throws Exception {
+
+        if (m_PruneFraction <= 0 && !m_CollapseSameClass) {
+            return;
+        }
+
+        Instance[] pruneInstances = new Instance[pruneRows.length];
+        for (int i = 0; i < pruneRows.length; i++) {
+            pruneInstances[i] = spill != null ? spill.instance(pruneRows[i]) : instances.get(pruneRows[i]);
+        }
+        Instance[] latencySample = pruneInstances;
+        if (latencySample.length == 0) {
+            int numInstances = spill != null ? spill.numInstances() : instances.numInstances();
+            latencySample = new Instance[Math.min(numInstances, LATENCY_SAMPLE_SIZE)];
+            for (int i = 0; i < latencySample.length; i++) {
+                latencySample[i] = spill != null ? spill.instance(i) : instances.get(i);
+            }
+        }
+
+        m_NodesBeforePruning = countNodes(m_RootNode);
+        m_FiltersBeforePruning = m_Flat.Filters.length;
+        m_LatencyBeforePruning = measureLatency(latencySample);
+
+        if (pruneInstances.length > 0) {
+            reducedErrorPrune(m_RootNode, pruneInstances, allRows(pruneInstances.length), 0, pruneInstances.length);
+        }
+        if (m_CollapseSameClass) {
+            collapseSameClass(m_RootNode);
+        }
+        m_SubtreeClassCounts = null;
+        compileTree();
+        m_LatencyAfterPruning = measureLatency(latencySample);
+    }
+
+    /**
+     * Reduced-error pruning: bottom up, a split node is turned into a leaf if the leaf misclassifies no more
+     * of the held-out instances reaching the node than its pruned subtree does. Nodes no held-out instance
+     * reaches are therefore pruned as well.
+     *
+     * @param node the root of the subtree to prune
+     * @param pruneInstances the held-out instances
+     * @param indices indices into pruneInstances, the range of the instances reaching the node is reordered
+     * @param from the first position in indices of the instances reaching the node
+     * @param to the position after the last one
+     * @return the number of held-out instances reaching the node that the pruned subtree misclassifies
+     * @throws Exception if the held-out instances could not be filtered
+     */
+    protected double reducedErrorPrune(Node node, Instance[] pruneInstances, int[] indices, int from, int to) throws Exception {
+
+        double[] counts = subtreeClassCounts(node);
+        int leafClass = Utils.maxIndex(counts);
+        double leafErrors = 0;
+        for (int i = from; i < to; i++) {
+            Instance instance = pruneInstances[indices[i]];
+            if (!instance.classIsMissing() && (int) instance.classValue() != leafClass) {
+                leafErrors++;
+            }
+        }
+        if (!(node.NodeInfo instanceof SplitNodeInfo)) {
+            return leafErrors;
+        }
+
+        //Moving the instances going left to the front of the range
+        SplitNodeInfo splitNode = (SplitNodeInfo) node.NodeInfo;
+        int mid = from;
+        for (int i = from; i < to; i++) {
+            if (splitNodeValue(splitNode, pruneInstances[indices[i]]) < splitNode.SplitValue) {
+                int index = indices[i];
+                indices[i] = indices[mid];
+                indices[mid++] = index;
+            }
+        }
+
+        double subtreeErrors = reducedErrorPrune(splitNode.Left, pruneInstances, indices, from, mid)
+                + reducedErrorPrune(splitNode.Right, pruneInstances, indices, mid, to);
+        if (leafErrors <= subtreeErrors) {
+            makeLeafNode(node, counts);
+            return leafErrors;
+        }
+        return subtreeErrors;
+    }
+
+    /**
+     * Collapses, bottom up, every split node whose two children are leaves predicting the same class into a
+     * leaf built from their combined counts, which predicts that class as well
+     *
+     * @param node the root of the subtree to collapse
+     */
+    protected void collapseSameClass(Node node) {
+        if (!(node.NodeInfo instanceof SplitNodeInfo)) {
+            return;
+        }
+        SplitNodeInfo splitNode = (SplitNodeInfo) node.NodeInfo;
+        collapseSameClass(splitNode.Left);
+        collapseSameClass(splitNode.Right);
+        if (splitNode.Left.NodeInfo instanceof LeafNodeInfo && splitNode.Right.NodeInfo instanceof LeafNodeInfo
+                && Utils.maxIndex(((LeafNodeInfo) splitNode.Left.NodeInfo).Prediction)
+                == Utils.maxIndex(((LeafNodeInfo) splitNode.Right.NodeInfo).Prediction)) {
+            makeLeafNode(node, subtreeClassCounts(node));
+        }
+    }
+
+    /**
+     * Turns a node into a leaf predicting the distribution of the given class counts
+     *
+     * @param node the node to turn into a leaf
+     * @param classCount the count of each class at the node, copied
+     */
+    protected void makeLeafNode(Node node, double[] classCount) {
+        double[] prediction = classCount.clone();
+        if (Utils.sum(prediction) > 0) {
+            Utils.normalize(prediction);
+        } else {
+            Arrays.fill(prediction, 1.0 / prediction.length);
+        }
+        node.NodeInfo = new LeafNodeInfo(prediction, classCount.clone());
+    }
+
+    /**
+     * Measures the scoring latency of the compiled tree, after scoring the instances once to warm up
+     *
+     * @param instances the instances to score
+     * @return the time in microseconds per instance, 0 if there are no instances
+     * @throws Exception if an instance could not be classified
+     */
+    protected double measureLatency(Instance[] instances) throws Exception {
+        if (instances.length == 0) {
+            return 0;
+        }
+        for (Instance instance : instances) {
+            distributionForInstance(instance);
+        }
+        long start = System.nanoTime();
+        for (Instance instance : instances) {
+            distributionForInstance(instance);
+        }
+        return (System.nanoTime() - start) / 1e3 / instances.length;
+    }
+
+    /**
+     * Updates the classifier with a new training instance. The instance is routed to its leaf through the
+     * split filters and added to the class counts of the leaf. If a grace period is set, the leaf also keeps
+     * its new instances and tries to split them every grace period, and only the leaf is rebuilt. Updates
+     * are made one at a time. Threads classifying instances meanwhile use the flattened tree from before
+     * the update, which is replaced as a whole once the update is done. An instance without a dataset is
+     * taken to have the attributes of the training data.
+     *
+     * @param instance the new training instance
+     * @throws Exception if the instance could not be filtered
+     */
+    @Override
+    public synchronized void updateClassifier(Instance instance) throws Exception {
+
+        //An instance without a dataset is read with the header of the training data
+        if (instance.dataset() == null) {
+            instance = (Instance) instance.copy();
+            instance.setDataset(m_Header);
+        }
+        if (instance.classIsMissing()) {
+            return;
+        }
+
+        //Finding the leaf of the instance
+        Node node = m_RootNode;
+        int depth = 0;
+        while (node.NodeInfo instanceof SplitNodeInfo) {
+            SplitNodeInfo splitNode = (SplitNodeInfo) node.NodeInfo;
+            double value;
+            if (splitNode.Filter instanceof AllFilter) {
+                value = instance.value(splitNode.SplitAttribute.index());
+            } else {
+                //The filter may be shared with threads classifying instances
+                synchronized (splitNode.Filter) {
+                    value = filterValue(splitNode.Filter, instance, splitNode.SplitAttribute.index());
+                }
+            }
+            node = value < splitNode.SplitValue ? splitNode.Left : splitNode.Right;
+            depth++;
+        }
+
+        //Updating the class counts and prediction of the leaf
+        LeafNodeInfo leaf = (LeafNodeInfo) node.NodeInfo;
+        leaf.ClassCountForString[(int) instance.classValue()]++;
+        m_SubtreeClassCounts = null;
+        double[] prediction = leaf.ClassCountForString.clone();
+        Utils.normalize(prediction);
+        leaf.Prediction = prediction;
+
+        if (m_GracePeriod > 0) {
+            if (leaf.NewInstances == null) {
+                leaf.NewInstances = new Instances(m_Header, m_GracePeriod);
+            }
+            leaf.NewInstances.add(instance);
+            if (leaf.NewInstances.size() % m_GracePeriod == 0 && splitLeaf(node, depth)) {
+                compileTree();
+                return;
+            }
+        }
+
+        //Publishing the new prediction with a copy of the leaf distributions of the flattened tree
+        FlatTree flat = m_Flat;
+        double[] leafDistributions = flat.LeafDistributions.clone();
+        System.arraycopy(prediction, 0, leafDistributions, leaf.FlatOffset, prediction.length);
+        m_Flat = new FlatTree(flat, leafDistributions);
+    }
+
+    /**
+     * Tries to split a leaf on the instances it has collected since it was created. The best split is
+     * taken if its information gain is larger than the Hoeffding bound for the number of instances, so
+     * with probability 1 - splitConfidence it has positive gain on the whole stream. The new leaves divide
+     * the class counts of the leaf between them, each class in the proportion in which its collected
+     * instances went left and right. A leaf keeps at most the last ten grace periods of instances.
+     *
+     * @param node the leaf node
+     * @param depth the depth of the leaf
+     * @return true if the leaf was split
+     * @throws Exception if the filter could not be applied
+     */
+    protected boolean splitLeaf(Node node, int depth) throws Exception {
+
+        LeafNodeInfo leaf = (LeafNodeInfo) node.NodeInfo;
+        Instances instances = leaf.NewInstances;
+        int[] rows = new int[instances.numInstances()];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = i;
+        }
+
+        //A leaf holds at most ten grace periods of instances, the table is kept for the next splits
+        if (m_NLogN == null || m_NLogN.length <= rows.length) {
+            m_NLogN = createNLogNTable(Math.max(rows.length, 10 * m_GracePeriod));
+        }
+
+        UnexpandedNodeInfo newNode = new UnexpandedNodeInfo(instances, null, rows, 0, rows.length, depth, m_Random.nextLong());
+        if (findLeafSplit(newNode)) {
+
+            //The information gain of a split is at most log2 of the number of classes
+            double range = Utils.log2(instances.numClasses());
+            double bound = Math.sqrt(range * range * Math.log(1.0 / m_SplitConfidence) / (2.0 * rows.length));
+            if (newNode.InformationGain / rows.length > bound) {
+                node.NodeInfo = newNode;
+                SplitNodeInfo splitNodeInfo = makeSplitNode(node);
+                double[] leftCounts = ((LeafNodeInfo) makeLeafNode(splitNodeInfo.Left).NodeInfo).ClassCountForString;
+                double[] rightCounts = ((LeafNodeInfo) makeLeafNode(splitNodeInfo.Right).NodeInfo).ClassCountForString;
+                double leftFraction = Utils.sum(leftCounts) / rows.length;
+                double[] parentCounts = leaf.ClassCountForString;
+                double[] newLeftCounts = new double[parentCounts.length];
+                double[] newRightCounts = new double[parentCounts.length];
+                for (int c = 0; c < parentCounts.length; c++) {
+                    double collected = leftCounts[c] + rightCounts[c];
+                    newLeftCounts[c] = parentCounts[c] * (collected > 0 ? leftCounts[c] / collected : leftFraction);
+                    newRightCounts[c] = parentCounts[c] - newLeftCounts[c];
+                }
+                makeLeafNode(splitNodeInfo.Left, newLeftCounts);
+                makeLeafNode(splitNodeInfo.Right, newRightCounts);
+                return true;
+            }
+        }
+
+        //Dropping the oldest grace period of instances
+        if (rows.length >= 10 * m_GracePeriod) {
+            leaf.NewInstances = new Instances(instances, m_GracePeriod, rows.length - m_GracePeriod);
+        }
+        return false;
+    }
+
+    /**
+     * Counts the nodes in the subtree of the given node
+     *
+     * @param node the root of the subtree
+     * @return the number of split and leaf nodes in the subtree
+     */
+    protected int countNodes(Node node) {
+        if (node.NodeInfo instanceof SplitNodeInfo) {
+            return 1 + countNodes(((SplitNodeInfo) node.NodeInfo).Left) + countNodes(((SplitNodeInfo) node.NodeInfo).Right);
+        }
+        return 1;
     }
 
-
-
     /**
-     * Method that processes a node. Assumes that the given node is unexpanded. Turns the node
-     * into a leaf node or split node as appropriate by replacing the node information.
+     * Returns the depth of the subtree of the given node
      *
-     * @param node the unexpanded node to process
-     * @return the node with updated node information, turning it into a split node or leaf node
+     * @param node the root of the subtree
+     * @return the number of split nodes on the longest path from the node to a leaf
      */
-    protected Node splitNode(Node node) throws Exception {
-
-
-        UnexpandedNodeInfo newNode = ((UnexpandedNodeInfo)node.NodeInfo);
-
-        int[][] currentStats;
+    protected int treeDepth(Node node) {
+        if (node.NodeInfo instanceof SplitNodeInfo) {
+            return 1 + Math.max(treeDepth(((SplitNodeInfo) node.NodeInfo).Left), treeDepth(((SplitNodeInfo) node.NodeInfo).Right));
+        }
+        return 0;
+    }
 
-        //Checking stopping criteria - Certain Number of instances met, as specified by the user
-        if((newNode.Instances.size()) <= m_MinInstances){
+    /**
+     * Lays out the trained tree as flat arrays so instances can be classified with an iterative traversal.
+     * Nodes are stored in depth-first order, so the left child of a split node directly follows it. The
+     * arrays are built in a new FlatTree, which replaces the previous one once it is complete.
+     */
+    protected void compileTree() {
+        FlatTree flat = new FlatTree(countNodes(m_RootNode));
 
-            currentStats = null;
-            newNode = null;
+        List<double[]> leafDistributions = new ArrayList<>();
+        List<Filter> filters = new ArrayList<>();
+        flattenNode(flat, m_RootNode, 0, leafDistributions, filters);
 
-            return makeLeafNode(node);
+        flat.LeafDistributions = new double[leafDistributions.size() * flat.NumClasses];
+        for (int i = 0; i < leafDistributions.size(); i++) {
+            System.arraycopy(leafDistributions.get(i), 0, flat.LeafDistributions, i * flat.NumClasses, flat.NumClasses);
         }
+        flat.Filters = filters.toArray(new Filter[0]);
+        flat.LinearFilters = compileLinearFilters(flat);
+        m_Flat = flat;
+    }
 
-        //Making a deep copy of the data
-        Filter filter = Filter.makeCopy(m_Filter);
-
-        //Allowing randomizable filter if is of type randomizable
-        if (filter instanceof Randomizable) {
-            ((Randomizable) filter).setSeed(m_Random.nextInt());
+    /**
+     * Returns the split attribute of the nodes using each filter slot. A slot is shared by nodes that
+     * inherited the filter, which may split on different attributes of its output.
+     *
+     * @param flat the flattened tree
+     * @return the index of the split attribute for each slot, -1 if the nodes using it split on different attributes
+     */
+    protected static int[] filterSlotAttributes(FlatTree flat) {
+        int[] filterAttributes = new int[flat.Filters.length];
+        Arrays.fill(filterAttributes, -2);
+        for (int i = 0; i < flat.FilterSlot.length; i++) {
+            int slot = flat.FilterSlot[i];
+            if (slot >= 0) {
+                filterAttributes[slot] = filterAttributes[slot] == -2 || filterAttributes[slot] == flat.SplitAttribute[i]
+                        ? flat.SplitAttribute[i] : -1;
+            }
         }
+        return filterAttributes;
+    }
 
-        //Setting up input format of filter
-        filter.setInputFormat(newNode.Instances);
-        //Filtering the instances based on a filter specified by the user
-        Instances newInstances = Filter.useFilter(newNode.Instances,filter);
+    /**
+     * Finds the filters of the flattened tree whose split attribute is an affine function of the input
+     * attributes. Filters of loaded compact models are already linear projections, other filters are
+     * only probed if obliqueSplits is set.
+     *
+     * @param flat the flattened tree
+     * @return the linear projection for each filter slot, null for filters that have to be applied
+     */
+    protected LinearProjectionFilter[] compileLinearFilters(FlatTree flat) {
+        LinearProjectionFilter[] linearFilters = new LinearProjectionFilter[flat.Filters.length];
+        int[] filterAttributes = filterSlotAttributes(flat);
+        for (int slot = 0; slot < flat.Filters.length; slot++) {
+            Filter filter = flat.Filters[slot];
+            if (filter instanceof LinearProjectionFilter) {
+                linearFilters[slot] = (LinearProjectionFilter) filter;
+            } else if (m_ObliqueSplits && m_Header != null && filterAttributes[slot] >= 0) {
+                try {
+                    synchronized (filter) {
+                        linearFilters[slot] = LinearProjectionFilter.fromFilter(filter, m_Header, filterAttributes[slot]);
+                    }
+                } catch (Exception e) {
+                    //The filter is applied as before
+                    linearFilters[slot] = null;
+                }
+            }
+        }
+        return linearFilters;
+    }
 
-        //Creating new a copy of the instances as when they get sorted it messes up the index pairing
-        Instances FilteredInstances = new Instances(newInstances);
+    /**
+     * Returns the filters of the flattened tree for the calling thread. Filters keep the instance being
+     * filtered as state, so each thread classifies with its own copies, made the first time it asks.
+     * Filters that cannot be copied at all are shared and locked while they filter an instance.
+     *
+     * @param flat the flattened tree
+     * @return the calling thread's copies of the filters of the flattened tree
+     */
+    protected static Filter[] getThreadFilters(FlatTree flat) {
+        ThreadLocal<Filter[]> threadFilters = flat.ThreadFilters;
+        if (threadFilters == null) {
+            synchronized (flat) {
+                if (flat.ThreadFilters == null) {
+                    flat.ThreadFilters = new ThreadLocal<>();
+                }
+                threadFilters = flat.ThreadFilters;
+            }
+        }
 
-        double bestSplitValue = 0; //best Split value for the node
-        double minExpectedEntropy = 0.0; //Best Expected entropy for a split -> want to minimise this
-        double currentExpectedEntropy; //Current entropy for a split
-        double newSplitValue; //Current split value
-        Attribute bestAttribute = null;
-        boolean lock = false;
+        Filter[] filters = threadFilters.get();
+        if (filters == null) {
+            filters = new Filter[flat.Filters.length];
+            for (int i = 0; i < filters.length; i++) {
+                try {
+                    //Linear projections are not applied as filters, so they are not copied
+                    filters[i] = flat.LinearFilters[i] != null ? flat.Filters[i] : copyFittedFilter(flat.Filters[i]);
+                } catch (Exception e) {
+                    filters[i] = flat.Filters[i];
+                }
+            }
+            threadFilters.set(filters);
+        }
+        return filters;
+    }
 
-        //Calculating the entropy of the node - used to calculate information gain
-        double entropyOfCurrentNode = calculateExpectedEntropyBeforeSplit(newInstances);
+    /**
+     * Copies a fitted filter through a FittedFilterOutputStream. Filter.makeCopy fails on filters that keep
+     * non-serializable matrices from fitting, such as PrincipalComponents, which this copies without them.
+     *
+     * @param filter the fitted filter
+     * @return the copy
+     * @throws Exception if the filter could not be serialized
+     */
+    protected static Filter copyFittedFilter(Filter filter) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new FittedFilterOutputStream(bytes)) {
+            synchronized (filter) {
+                out.writeObject(filter);
+            }
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            return (Filter) in.readObject();
+        }
+    }
 
-        //Iterating through the attributes
-        for (int i = 0; i < newInstances.numAttributes() - 1; i++) {
+    /**
+     * Copies the configuration of a tree through serialization, for the classifiers that build trees from a template
+     *
+     * @param tree the template tree
+     * @return the copy
+     * @throws Exception if the tree could not be serialized
+     */
+    protected static FilterTree copyTree(FilterTree tree) throws Exception {
+        return (FilterTree) AbstractClassifier.makeCopy(tree);
+    }
 
-            newInstances.sort(i);//Sorting Attributes
+    /**
+     * Writes a node and its subtree into the flat arrays
+     *
+     * @param flat the flattened tree being built
+     * @param node the node to write
+     * @param index the position of the node in the flat arrays
+     * @param leafDistributions the leaf distributions collected so far
+     * @param filters the filters collected so far
+     * @return the position after the last node of the subtree
+     */
+    protected int flattenNode(FlatTree flat, Node node, int index, List<double[]> leafDistributions, List<Filter> filters) {
+
+        if (node.NodeInfo instanceof LeafNodeInfo) {
+            double[] prediction = ((LeafNodeInfo) node.NodeInfo).Prediction;
+            flat.NumClasses = prediction.length;
+            flat.Left[index] = -1;
+            flat.Right[index] = -1;
+            flat.SplitAttribute[index] = -1;
+            flat.FilterSlot[index] = -1;
+            flat.LeafOffset[index] = leafDistributions.size() * prediction.length;
+            ((LeafNodeInfo) node.NodeInfo).FlatOffset = flat.LeafOffset[index];
+            leafDistributions.add(prediction);
+            return index + 1;
+        }
 
-            currentStats = createSufficientStatistics(newInstances);//Creating the current sufficient statistics
+        SplitNodeInfo splitNode = (SplitNodeInfo) node.NodeInfo;
+        flat.SplitAttribute[index] = splitNode.SplitAttribute.index();
+        flat.SplitValue[index] = splitNode.SplitValue;
+        flat.LeafOffset[index] = -1;
+
+        //AllFilter outputs the instance unchanged, so the split attribute can be read from the instance itself
+        if (splitNode.Filter instanceof AllFilter) {
+            flat.FilterSlot[index] = -1;
+        } else if (splitNode.FilterChoice == FILTER_INHERITED) {
+            //Sharing the slot of the node the filter was fitted at, which is above this one
+            flat.FilterSlot[index] = filters.lastIndexOf(splitNode.Filter);
+        } else {
+            flat.FilterSlot[index] = filters.size();
+            filters.add(splitNode.Filter);
+        }
 
-            double oldVal = newInstances.get(0).value(i);
+        flat.Left[index] = index + 1;
+        flat.Right[index] = flattenNode(flat, splitNode.Left, index + 1, leafDistributions, filters);
+        return flattenNode(flat, splitNode.Right, flat.Right[index], leafDistributions, filters);
+    }
 
-            //Going through the attribute values and working out the split points
-            for (int j = 1; j < newInstances.size(); j++) {
+    /**
+     * Marks the split nodes whose filter is also used by a node above them as inherited, for trees whose
+     * nodes were rebuilt from the flattened tree
+     *
+     * @param node the node
+     * @param seen the filters of the nodes visited so far
+     */
+    protected void markInheritedFilters(Node node, Set<Filter> seen) {
+        if (node.NodeInfo instanceof SplitNodeInfo) {
+            SplitNodeInfo splitNode = (SplitNodeInfo) node.NodeInfo;
+            if (!(splitNode.Filter instanceof AllFilter) && !seen.add(splitNode.Filter)) {
+                splitNode.FilterChoice = FILTER_INHERITED;
+            }
+            markInheritedFilters(splitNode.Left, seen);
+            markInheritedFilters(splitNode.Right, seen);
+        }
+    }
 
-                //Calculating current expected entropy based on the current sufficient statistics
-                currentExpectedEntropy = calculateExpectedEntropy(currentStats);
+    /**
+     * Counts the split nodes whose filter was chosen in a given way
+     *
+     * @param node the root of the subtree
+     * @param filterChoice how the filter was chosen
+     * @return the number of split nodes in the subtree with that choice
+     */
+    protected int countFilterChoices(Node node, byte filterChoice) {
+        if (!(node.NodeInfo instanceof SplitNodeInfo)) {
+            return 0;
+        }
+        SplitNodeInfo splitNode = (SplitNodeInfo) node.NodeInfo;
+        return (splitNode.FilterChoice == filterChoice ? 1 : 0) + countFilterChoices(splitNode.Left, filterChoice)
+                + countFilterChoices(splitNode.Right, filterChoice);
+    }
 
-                if((currentExpectedEntropy < minExpectedEntropy) || (!lock)){
+    /**
+     * Filters a single instance and returns the value of one attribute of the output
+     *
+     * @param filter the fitted filter
+     * @param instance the instance to filter
+     * @param attIndex the index of the attribute in the output of the filter
+     * @return the filtered value
+     * @throws Exception if the instance could not be filtered
+     */
+    protected double filterValue(Filter filter, Instance instance, int attIndex) throws Exception {
+        return filterInstance(filter, instance).value(attIndex);
+    }
 
-                    //Calculating Split Value
-                    newSplitValue = (oldVal + newInstances.get(j).value(i))/2.0;
+    /**
+     * Filters a single instance
+     *
+     * @param filter the fitted filter
+     * @param instance the instance to filter
+     * @return the filtered instance
+     * @throws Exception if the instance could not be filtered
+     */
+    protected Instance filterInstance(Filter filter, Instance instance) throws Exception {
+        filter.input(instance);
+        filter.batchFinished();
+        return filter.output();
+    }
 
-                    //If the old value and the new value are the same don't change
-                    if(newSplitValue != oldVal){
-                        minExpectedEntropy = currentExpectedEntropy;
-                        bestAttribute = newInstances.attribute(i);
-                        bestSplitValue = newSplitValue;
-                        lock = true;//Setting lock so it can't get in the loop unless it meets first Criterion.
+    /**
+     * Finds the leaf for an instance by walking the flattened tree iteratively
+     *
+     * @param flat the flattened tree
+     * @param instance the instance to classify
+     * @param filters the filters to use for the split nodes, owned by the calling thread
+     * @return the offset of the class distribution of the leaf in the leaf distributions of the tree
+     * @throws Exception if an instance could not be filtered
+     */
+    protected int traverseFlatTree(FlatTree flat, Instance instance, Filter[] filters) throws Exception {
+
+        int node = 0;
+        double value;
+        Instance filtered = null;
+        int filteredSlot = -1;
+        while (flat.Left[node] >= 0) {
+            int filterSlot = flat.FilterSlot[node];
+            if (filterSlot < 0) {
+                value = instance.value(flat.SplitAttribute[node]);
+            } else if (flat.LinearFilters[filterSlot] != null) {
+                //Oblique split, a dot product with the raw values
+                value = flat.LinearFilters[filterSlot].project(instance);
+            } else if (filterSlot == filteredSlot) {
+                //The node inherited the filter of a node above it, whose output is reused
+                value = filtered.value(flat.SplitAttribute[node]);
+            } else {
+                //Filtering the instance to be checked
+                Filter currentNodeFilter = filters[filterSlot];
+                if (currentNodeFilter == flat.Filters[filterSlot]) {
+                    //Filter is shared between threads
+                    synchronized (currentNodeFilter) {
+                        filtered = filterInstance(currentNodeFilter, instance);
                     }
+                } else {
+                    filtered = filterInstance(currentNodeFilter, instance);
                 }
-
-                oldVal = newInstances.get(j).value(i);
-                //Move sufficient statistics to the left and get the value
-                updateSufficientStatistics(newInstances.get(j),newInstances,currentStats);
+                filteredSlot = filterSlot;
+                value = filtered.value(flat.SplitAttribute[node]);
             }
+            node = value < flat.SplitValue[node] ? flat.Left[node] : flat.Right[node];
         }
+        return flat.LeafOffset[node];
+    }
 
-        //Check stop criterion again if information gain has not increased
-        double informationGain = entropyOfCurrentNode - minExpectedEntropy;
-        if(informationGain <= 0.0 || bestAttribute == null){
-
-            //Clean up
-            bestAttribute = null;
-            FilteredInstances = null;
-            newInstances = null;
-            filter = null;
-            currentStats = null;
-            newNode = null;
+    /**
+     * Fills the values of a node's split attribute for the rows in a range, running the node's filter
+     * once over just those rows
+     *
+     * @param flat the flattened tree
+     * @param node the split node of the flattened tree
+     * @param batch the batch being scored
+     * @param rows the row indices of the batch
+     * @param values the array to write the values to, aligned with rows
+     * @param from the first position in rows
+     * @param to the position after the last one
+     * @throws Exception if the rows could not be filtered
+     */
+    protected void fillSplitValues(FlatTree flat, int node, Instances batch, int[] rows, double[] values, int from, int to) throws Exception {
 
-            return makeLeafNode(node);
+        int attIndex = flat.SplitAttribute[node];
+        int filterSlot = flat.FilterSlot[node];
+        if (filterSlot < 0) {
+            for (int i = from; i < to; i++) {
+                values[i] = batch.get(rows[i]).value(attIndex);
+            }
+            return;
+        }
+        LinearProjectionFilter linear = flat.LinearFilters[filterSlot];
+        if (linear != null) {
+            for (int i = from; i < to; i++) {
+                values[i] = linear.project(batch.get(rows[i]));
+            }
+            return;
         }
 
-        //Splitting data into two subsets base on the filter value
-        Instances[] subsets = new Instances[2];
-        subsets[0] = new Instances(newNode.Instances, newNode.Instances.numInstances());
-        subsets[1] = new Instances(newNode.Instances, newNode.Instances.numInstances());
+        Filter currentNodeFilter = getThreadFilters(flat)[filterSlot];
+        if (currentNodeFilter == flat.Filters[filterSlot]) {
+            //Filter is shared between threads
+            synchronized (currentNodeFilter) {
+                filterSplitValues(currentNodeFilter, batch, rows, values, from, to, attIndex);
+            }
+        } else {
+            filterSplitValues(currentNodeFilter, batch, rows, values, from, to, attIndex);
+        }
+    }
 
-        //Calculating what subset to send instance into
-        for (int i = 0; i < newNode.Instances.size(); i++) {
-            subsets[FilteredInstances.get(i).value(bestAttribute) < bestSplitValue ? 0 : 1].add(newNode.Instances.get(i));
+    /**
+     * Filters the rows in a range as one batch and writes the value of one output attribute for each row
+     *
+     * @param filter the fitted filter
+     * @param batch the batch being scored
+     * @param rows the row indices of the batch
+     * @param values the array to write the values to, aligned with rows
+     * @param from the first position in rows
+     * @param to the position after the last one
+     * @param attIndex the index of the attribute in the output of the filter
+     * @throws Exception if the rows could not be filtered
+     */
+    protected void filterSplitValues(Filter filter, Instances batch, int[] rows, double[] values, int from, int to,
+                                     int attIndex) throws Exception {
+        for (int i = from; i < to; i++) {
+            filter.input(batch.get(rows[i]));
         }
+        filter.batchFinished();
+        for (int i = from; i < to; i++) {
+            values[i] = filter.output().value(attIndex);
+        }
+    }
 
+    /**
+     * Scores the rows of a batch that reach a node of the flattened tree. The rows are partitioned in place
+     * at every split node and each leaf writes its distribution straight into the result. Large subtrees
+     * are scored in parallel if more than one execution slot is set.
+     *
+     * @param flat the flattened tree
+     * @param node the node of the flattened tree
+     * @param batch the batch being scored
+     * @param rows the row indices of the batch
+     * @param values scratch space for the split attribute values, aligned with rows
+     * @param scratchRows scratch space for partitioning the rows, aligned with rows
+     * @param scratchValues scratch space for partitioning the values, aligned with rows
+     * @param from the first position in rows that reaches the node
+     * @param to the position after the last one
+     * @param result the distributions, indexed by row
+     * @throws Exception if the rows could not be filtered
+     */
+    protected void scoreFlatBatch(FlatTree flat, int node, Instances batch, int[] rows, double[] values, int[] scratchRows,
+                                  double[] scratchValues, int from, int to, double[][] result) throws Exception {
 
-        //Transforming node into a split node
-        node.NodeInfo = new SplitNodeInfo(bestAttribute,bestSplitValue,filter);
+        while (from < to) {
 
-        //Clean up
-        bestAttribute = null;
-        FilteredInstances = null;
-        newInstances = null;
-        filter = null;
-        currentStats = null;
-        newNode = null;
+            if (flat.Left[node] < 0) {
+                int offset = flat.LeafOffset[node];
+                for (int i = from; i < to; i++) {
+                    result[rows[i]] = Arrays.copyOfRange(flat.LeafDistributions, offset, offset + flat.NumClasses);
+                }
+                return;
+            }
 
-        //Process left side of tree
-        ((SplitNodeInfo)node.NodeInfo).Left = splitNode(new Node(new UnexpandedNodeInfo(subsets[0])));
+            fillSplitValues(flat, node, batch, rows, values, from, to);
 
-        //process right side of tree
-        ((SplitNodeInfo)node.NodeInfo).Right = splitNode(new Node(new UnexpandedNodeInfo(subsets[1])));
+            //Partitioning the rows without a branch per row, the ones going left end up in front
+            int mid = PARTITIONER.partition(rows, values, from, to, flat.SplitValue[node], scratchRows, scratchValues);
 
-        return node;
+            if (m_NumExecutionSlots != 1 && to - from >= m_ParallelCutoff && mid > from && mid < to) {
+                //Scoring the left side in another task while this one scores the right side
+                BatchScoringTask leftTask = new BatchScoringTask(flat, flat.Left[node], batch, rows, values, scratchRows, scratchValues,
+                        from, mid, result);
+                leftTask.fork();
+                scoreFlatBatch(flat, flat.Right[node], batch, rows, values, scratchRows, scratchValues, mid, to, result);
+                joinTask(leftTask);
+                return;
+            }
 
+            scoreFlatBatch(flat, flat.Left[node], batch, rows, values, scratchRows, scratchValues, from, mid, result);
+
+            //Continuing with the right side
+            node = flat.Right[node];
+            from = mid;
+        }
     }
 
     /**
-     * Builds the classifier
-     * @param instances that are used to build the classifier
+     * Gets the class distributions for a batch of instances. The batch is scored through the flattened tree
+     * with one array of row indices that is partitioned in place, without copying instances.
+     * @param batch the instances you want to find predictions for
+     * @return the class distribution for each instance
      * @throws Exception
      */
-    @Override
-    public void buildClassifier(Instances instances) throws Exception {
-
-        //Setting random seed of random object
-        m_Random = instances.getRandomNumberGenerator(getSeed());
-
-        //Creating rootNode
-        Node newNode = new Node(new UnexpandedNodeInfo(instances));
-
-        //Processing Node
-        m_RootNode = splitNode(newNode);
-    }
-
     @Override
     public double[][] distributionsForInstances(Instances batch) throws Exception {
-        
-        return traverseTreeBatch(m_RootNode,batch);
 
+        FlatTree flat = m_Flat;
+        if (flat == null) {
+            throw new IllegalStateException("FilterTree: has not been built yet");
+        }
+
+        double[][] result = new double[batch.size()][];
+        int[] rows = new int[batch.size()];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = i;
+        }
+        double[] values = new double[batch.size()];
+        int[] scratchRows = new int[batch.size()];
+        double[] scratchValues = new double[batch.size()];
+
+        if (m_NumExecutionSlots != 1 && batch.size() >= m_ParallelCutoff) {
+            BatchScoringTask rootTask = new BatchScoringTask(flat, 0, batch, rows, values, scratchRows, scratchValues, 0, rows.length, result);
+            ForkJoinPool.commonPool().execute(rootTask);
+            joinTask(rootTask);
+        } else {
+            scoreFlatBatch(flat, 0, batch, rows, values, scratchRows, scratchValues, 0, rows.length, result);
+        }
+        return result;
     }
 
     @Override
@@ -470,140 +3035,386 @@ public class FilterTree extends RandomizableClassifier {
         return true;
     }
 
-    protected double[][] traverseTreeBatch(Node node, Instances batch) throws Exception {
-
-        double[][] outArr = new double[batch.size()][];
-
-        //If root is leaf node return prediction
-        if(node.NodeInfo instanceof LeafNodeInfo){
-            for (int i = 0; i < batch.size(); i++) {
+    /**
+     * Gets the class distribution for an instance. Safe to call from several threads at once, each
+     * thread filters with its own copies of the node filters.
+     * @param instance the instance you want to find a prediction for
+     * @return array of based on class distribution of the node
+     * @throws Exception
+     */
+    @Override
+    public double[] distributionForInstance(Instance instance) throws Exception {
 
-                outArr[i] = ((LeafNodeInfo)node.NodeInfo).Prediction;
+        FlatTree flat = m_Flat;
+        if (flat == null) {
+            throw new IllegalStateException("FilterTree: has not been built yet");
+        }
 
-            }
-            return outArr;
+        //Recording a sample of the predictions as JFR events, only drawing the sample while a recording has them enabled
+        PredictionEvent event = null;
+        if (m_PredictionEventRate > 0 && PREDICTION_EVENT_TYPE.isEnabled()
+                && ThreadLocalRandom.current().nextInt(m_PredictionEventRate) == 0) {
+            event = new PredictionEvent();
+            event.begin();
         }
 
-        //It is a splitNode as leaf node should have been returned, so it is safe to cast
-        SplitNodeInfo currNode = ((SplitNodeInfo) node.NodeInfo);
+        //Traversing the flattened tree, filters are only copied for the thread if the tree has any
+        int offset = traverseFlatTree(flat, instance, flat.Filters.length == 0 ? flat.Filters : getThreadFilters(flat));
 
-        //Setting up input format of filter
-        //currNode.Filter.setInputFormat(batch);
-        //Filtering the instances based on a filter specified by the user
-        Instances FilteredInstances = Filter.useFilter(batch,currNode.Filter);
+        if (event != null && event.shouldCommit()) {
+            event.leafOffset = offset;
+            event.commit();
+        }
+        return Arrays.copyOfRange(flat.LeafDistributions, offset, offset + flat.NumClasses);
+    }
 
-        //Decide which branch each element goes down
-        boolean[] leftSideBoolean = new boolean[batch.size()];
+    /**
+     * Collects the class counts of the leaves of a subtree, in the order of the flattened tree
+     *
+     * @param node the root of the subtree
+     * @param classCounts the class counts collected so far
+     */
+    protected void collectLeafCounts(Node node, List<double[]> classCounts) {
+        if (node.NodeInfo instanceof LeafNodeInfo) {
+            classCounts.add(((LeafNodeInfo) node.NodeInfo).ClassCountForString);
+        } else {
+            collectLeafCounts(((SplitNodeInfo) node.NodeInfo).Left, classCounts);
+            collectLeafCounts(((SplitNodeInfo) node.NodeInfo).Right, classCounts);
+        }
+    }
 
-        Instances[] subsets = new Instances[2];
-        subsets[0] = new Instances(batch, batch.numInstances());
-        subsets[1] = new Instances(batch, batch.numInstances());
+    /**
+     * Generates the Java source of a classifier specialized to this tree, see CompiledFilterTree
+     *
+     * @param className the simple name of the class, in package weka.classifiers.meta
+     * @return the Java source
+     */
+    public String toJavaSource(String className) {
+        return CompiledFilterTree.generateSource(this, className);
+    }
 
-        //Calculating what subset to send instance into
-        for (int i = 0; i < leftSideBoolean.length; i++) {
-            if(FilteredInstances.get(i).value(currNode.SplitAttribute) < currNode.SplitValue){
-                leftSideBoolean[i] = true;
-                subsets[0].add(batch.get(i));
-            }else{
-                subsets[1].add(batch.get(i));
-            }
-        }
+    /**
+     * Generates a classifier specialized to this tree and compiles it in-process. The compiled classifier
+     * gives the same distributions as this tree, without walking the flattened arrays. A tree too large
+     * for one class gets a classifier that walks the flattened arrays instead.
+     *
+     * @return the compiled classifier
+     * @throws Exception if the tree has not been built, or no Java compiler is available
+     */
+    public CompiledFilterTree compileToClass() throws Exception {
+        return CompiledFilterTree.compile(this);
+    }
 
-        //Splitting data into two subsets base on the filter value
+    /**
+     * Serializes fitted filters, leaving out the mtj matrices some of them keep from fitting. PrincipalComponents
+     * keeps its correlation matrix, which cannot be serialized but is only used while the filter is fitted.
+     * Empty headers and attributes equal to one already written are written as a reference to it, so the
+     * filters of a tree, which all keep copies of the same few input and output formats, share them when read
+     * back, the way copies of a header share attributes.
+     */
+    protected static class FittedFilterOutputStream extends ObjectOutputStream {
 
-        //Clean up
-        FilteredInstances = null;
+        /**The empty headers written so far, by relation name**/
+        protected Map<String, List<Instances>> m_Headers = new HashMap<>();
 
-        double[][] leftOut = null;
-        double[][] rightOut = null;
+        /**The attributes written so far, by name**/
+        protected Map<String, List<Attribute>> m_Attributes = new HashMap<>();
 
-        if(subsets[0].size() != 0){
-            //Process left side of tree
-            leftOut = traverseTreeBatch(currNode.Left,subsets[0]);
+        public FittedFilterOutputStream(OutputStream out) throws IOException {
+            super(out);
+            enableReplaceObject(true);
         }
 
-        if(subsets[1].size() != 0){
-            //process right side of tree
-            rightOut = traverseTreeBatch(currNode.Right,subsets[1]);
+        @Override
+        protected Object replaceObject(Object obj) {
+            if (obj instanceof no.uib.cipr.matrix.Matrix && !(obj instanceof Serializable)) {
+                return null;
+            }
+            if (obj instanceof Instances && ((Instances) obj).numInstances() == 0) {
+                Instances header = (Instances) obj;
+                List<Instances> written = m_Headers.computeIfAbsent(header.relationName(), name -> new ArrayList<>());
+                for (Instances other : written) {
+                    if (sameHeader(other, header)) {
+                        return other;
+                    }
+                }
+                written.add(header);
+            } else if (obj instanceof Attribute) {
+                Attribute attribute = (Attribute) obj;
+                List<Attribute> written = m_Attributes.computeIfAbsent(attribute.name(), name -> new ArrayList<>());
+                for (Attribute other : written) {
+                    if (sameAttribute(other, attribute)) {
+                        return other;
+                    }
+                }
+                written.add(attribute);
+            }
+            return obj;
         }
 
-        int leftCount = 0;
-        int rightCount = 0;
-        //Merge the two arrays
-        for (int i = 0; i < leftSideBoolean.length; i++) {
-
-            //Merging arrays according to if they came from the left or right side of the tree
-            if(leftSideBoolean[i]){
-                assert leftOut != null;
-                outArr[i] = leftOut[leftCount];
-                leftCount ++;
+        /**
+         * Compares two headers by class index and attributes
+         *
+         * @return true if one header can stand in for the other
+         */
+        protected static boolean sameHeader(Instances first, Instances second) {
+            if (!first.equalHeaders(second)) {
+                return false;
             }
-            else {
-                assert rightOut != null;
-                outArr[i] = rightOut[rightCount];
-                rightCount++;
+            for (int j = 0; j < first.numAttributes(); j++) {
+                if (!sameAttribute(first.attribute(j), second.attribute(j))) {
+                    return false;
+                }
             }
+            return true;
         }
-        return outArr;
-    }
 
+        /**
+         * Compares two attributes by name, type, values, index and weight
+         *
+         * @return true if one attribute can stand in for the other
+         */
+        protected static boolean sameAttribute(Attribute first, Attribute second) {
+            return first.equals(second) && first.index() == second.index() && first.weight() == second.weight();
+        }
+    }
 
     /**
-     * Gets the class distribution for an instance
-     * @param instance the instance you want to find a prediction for
-     * @return array of based on class distribution of the node
-     * @throws Exception
+     * Saves the classifier in a compact binary format. The flattened tree is written as primitive arrays.
+     * A filter the tree applies as a LinearProjectionFilter, because it was loaded as one or reduced to one
+     * for oblique splits, is written as its weights. The other filters are Java serialized as they are, so the
+     * loaded tree makes exactly the same predictions, all through one object stream at the end of the file,
+     * which writes each class description and each distinct header only once. The file starts with a magic
+     * number and a format version, followed by the options and the header of the training data.
+     *
+     * @param file the file to write
+     * @throws Exception if the classifier has not been built or a filter could not be written
      */
-    @Override
-    public double[] distributionForInstance(Instance instance) throws Exception {
+    public synchronized void writeCompactModel(File file) throws Exception {
 
-        //Traversing the tree
-        return traverseTreeInstance(m_RootNode,instance);
-    }
+        FlatTree flat = m_Flat;
+        if (flat == null || m_Header == null) {
+            throw new IllegalStateException("FilterTree: has not been built yet");
+        }
+        List<double[]> classCounts = new ArrayList<>();
+        collectLeafCounts(m_RootNode, classCounts);
+
+        //Filters the tree applies as linear projections are written as their weights, the others as they are
+        int numNodes = flat.Left.length;
+        Filter[] filters = new Filter[flat.Filters.length];
+        for (int slot = 0; slot < filters.length; slot++) {
+            filters[slot] = flat.LinearFilters[slot] != null ? flat.LinearFilters[slot] : flat.Filters[slot];
+        }
+        int[] filterSlots = flat.FilterSlot;
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(COMPACT_MAGIC);
+            out.writeInt(COMPACT_VERSION);
+            writeString(out, Utils.joinOptions(getOptions()));
+            writeString(out, m_Header.toString());
+            out.writeInt(m_Header.classIndex());
+
+            out.writeInt(numNodes);
+            out.writeInt(flat.NumClasses);
+            out.writeInt(classCounts.size());
+            out.writeInt(filters.length);
+            for (int[] array : new int[][]{flat.Left, flat.Right, flat.SplitAttribute, flat.LeafOffset, filterSlots}) {
+                for (int value : array) {
+                    out.writeInt(value);
+                }
+            }
+            for (double value : flat.SplitValue) {
+                out.writeDouble(value);
+            }
+            for (double value : flat.LeafDistributions) {
+                out.writeDouble(value);
+            }
+            for (double[] counts : classCounts) {
+                for (double value : counts) {
+                    out.writeDouble(value);
+                }
+            }
 
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream objectOut = new FittedFilterOutputStream(bytes)) {
+                for (Filter filter : filters) {
+                    if (filter instanceof LinearProjectionFilter) {
+                        LinearProjectionFilter linear = (LinearProjectionFilter) filter;
+                        out.writeByte(COMPACT_FILTER_LINEAR);
+                        writeString(out, linear.getAttributeName());
+                        out.writeDouble(linear.getBias());
+                        for (int j = 0; j < m_Header.numAttributes(); j++) {
+                            out.writeDouble(linear.getWeights()[j]);
+                            out.writeDouble(linear.getMissingValues()[j]);
+                        }
+                    } else {
+                        out.writeByte(COMPACT_FILTER_SERIALIZED);
+                        synchronized (filter) {
+                            objectOut.writeObject(filter);
+                        }
+                    }
+                }
+            }
+            out.writeInt(bytes.size());
+            bytes.writeTo(out);
+        }
+    }
 
     /**
-     * Recursively traverses a tree in order to get a leaf node
-     * @param node the node to search for a prediction
-     * @param instance the instance value to search for a prediction with
-     * @return a prediction based on the class distribution from a leaf node
-     * @throws Exception
+     * Loads a classifier saved with writeCompactModel, reading the file through a memory-mapped buffer
+     *
+     * @param file the file to read
+     * @return the classifier, ready to classify instances
+     * @throws Exception if the file is not a compact model file of a supported version
      */
-    protected double[] traverseTreeInstance(Node node,Instance instance) throws Exception {
+    public static FilterTree readCompactModel(File file) throws Exception {
 
-        Instance filteredInstance;
-        Filter currentNodeFilter;
+        ByteBuffer in;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+            in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (in.getInt() != COMPACT_MAGIC) {
+            throw new IOException(file + " is not a FilterTree model file");
+        }
+        int version = in.getInt();
+        if (version != COMPACT_VERSION) {
+            throw new IOException("Unsupported FilterTree model version " + version);
+        }
 
-        if(node.NodeInfo instanceof LeafNodeInfo){
-            return ((LeafNodeInfo)node.NodeInfo).Prediction;
+        FilterTree tree = new FilterTree();
+        tree.setOptions(Utils.splitOptions(readString(in)));
+        tree.m_Header = new Instances(new StringReader(readString(in)));
+        tree.m_Header.setClassIndex(in.getInt());
+        tree.m_Random = new Random(tree.getSeed());
+
+        int numNodes = in.getInt();
+        int numClasses = in.getInt();
+        int numLeaves = in.getInt();
+        int numFilters = in.getInt();
+        int[] left = readInts(in, numNodes);
+        int[] right = readInts(in, numNodes);
+        int[] splitAttribute = readInts(in, numNodes);
+        int[] leafOffset = readInts(in, numNodes);
+        int[] filterSlot = readInts(in, numNodes);
+        double[] splitValue = readDoubles(in, numNodes);
+        double[] distributions = readDoubles(in, numLeaves * numClasses);
+        double[] classCounts = readDoubles(in, numLeaves * numClasses);
+
+        //The serialized filters follow the kinds of all filters, in one object stream
+        Filter[] filters = new Filter[numFilters];
+        boolean[] serialized = new boolean[numFilters];
+        for (int slot = 0; slot < numFilters; slot++) {
+            if (in.get() == COMPACT_FILTER_LINEAR) {
+                String name = readString(in);
+                double bias = in.getDouble();
+                double[] weights = new double[tree.m_Header.numAttributes()];
+                double[] missingValues = new double[weights.length];
+                for (int j = 0; j < weights.length; j++) {
+                    weights[j] = in.getDouble();
+                    missingValues[j] = in.getDouble();
+                }
+                filters[slot] = new LinearProjectionFilter(weights, bias, missingValues, name);
+                filters[slot].setInputFormat(tree.m_Header);
+            } else {
+                serialized[slot] = true;
+            }
+        }
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        try (ObjectInputStream objectIn = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            for (int slot = 0; slot < numFilters; slot++) {
+                if (serialized[slot]) {
+                    filters[slot] = (Filter) objectIn.readObject();
+                }
+            }
         }
 
-        //It is a splitNode as leaf node should have been returned, so it is safe to cast
-        SplitNodeInfo currNode = ((SplitNodeInfo) node.NodeInfo);
+        //Rebuilding the node objects, so the loaded tree can also be printed and updated
+        tree.m_RootNode = tree.expandFlatNode(0, left, right, splitAttribute, splitValue, leafOffset, filterSlot,
+                filters, distributions, classCounts, numClasses);
+        tree.markInheritedFilters(tree.m_RootNode, Collections.newSetFromMap(new IdentityHashMap<>()));
+        tree.compileTree();
+        return tree;
+    }
 
-        //Getting filter to use on the instance values
-        currentNodeFilter = currNode.Filter;
+    /**
+     * Recreates a node and its subtree from the arrays of a flattened tree
+     *
+     * @param index the position of the node in the arrays
+     * @return the node
+     * @throws Exception if the output format of a filter is not defined
+     */
+    protected Node expandFlatNode(int index, int[] left, int[] right, int[] splitAttribute, double[] splitValue,
+                                  int[] leafOffset, int[] filterSlot, Filter[] filters, double[] distributions,
+                                  double[] classCounts, int numClasses) throws Exception {
+        if (left[index] < 0) {
+            int offset = leafOffset[index];
+            return new Node(new LeafNodeInfo(Arrays.copyOfRange(distributions, offset, offset + numClasses),
+                    Arrays.copyOfRange(classCounts, offset, offset + numClasses)));
+        }
 
-        //Filtering the instance to be checked
-        currentNodeFilter.input(instance);
-        currentNodeFilter.batchFinished();
-        filteredInstance = currentNodeFilter.output();
+        Filter filter = filterSlot[index] < 0 ? new AllFilter() : filters[filterSlot[index]];
+        int attIndex = filter instanceof LinearProjectionFilter ? 0 : splitAttribute[index];
+        Attribute attribute = filterSlot[index] < 0 ? m_Header.attribute(attIndex) : filter.getOutputFormat().attribute(attIndex);
+        SplitNodeInfo splitNodeInfo = new SplitNodeInfo(attribute, splitValue[index], filter);
+        splitNodeInfo.Left = expandFlatNode(left[index], left, right, splitAttribute, splitValue, leafOffset, filterSlot,
+                filters, distributions, classCounts, numClasses);
+        splitNodeInfo.Right = expandFlatNode(right[index], left, right, splitAttribute, splitValue, leafOffset, filterSlot,
+                filters, distributions, classCounts, numClasses);
+        return new Node(splitNodeInfo);
+    }
 
-        if(filteredInstance.value(currNode.SplitAttribute) < currNode.SplitValue){
-            //Clean up
-            currentNodeFilter = null;
-            filteredInstance = null;
+    /**
+     * Writes a string as its length followed by its UTF-8 bytes
+     *
+     * @param out the stream to write to
+     * @param string the string
+     * @throws IOException if the string could not be written
+     */
+    protected static void writeString(DataOutputStream out, String string) throws IOException {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
 
-            //Traversing down left branch
-            return traverseTreeInstance(currNode.Left,instance);
-        }
-        else{
-            currentNodeFilter = null;
-            filteredInstance = null;
+    /**
+     * Reads a string written by writeString
+     *
+     * @param in the buffer to read from
+     * @return the string
+     */
+    protected static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
 
-            //Traversing down right branch
-            return traverseTreeInstance(currNode.Right,instance);
-        }
+    /**
+     * Reads an array of ints with one bulk copy
+     *
+     * @param in the buffer to read from
+     * @param length the number of values
+     * @return the values
+     */
+    protected static int[] readInts(ByteBuffer in, int length) {
+        int[] values = new int[length];
+        in.asIntBuffer().get(values);
+        in.position(in.position() + length * Integer.BYTES);
+        return values;
+    }
+
+    /**
+     * Reads an array of doubles with one bulk copy
+     *
+     * @param in the buffer to read from
+     * @param length the number of values
+     * @return the values
+     */
+    protected static double[] readDoubles(ByteBuffer in, int length) {
+        double[] values = new double[length];
+        in.asDoubleBuffer().get(values);
+        in.position(in.position() + length * Double.BYTES);
+        return values;
     }
 
     /**
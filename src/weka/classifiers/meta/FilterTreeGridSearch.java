@@ -0,0 +1,345 @@
+package weka.classifiers.meta;
+
+import weka.classifiers.Evaluation;
+import weka.classifiers.RandomizableClassifier;
+import weka.core.Capabilities;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.OptionMetadata;
+import weka.core.Utils;
+import weka.filters.AllFilter;
+import weka.filters.Filter;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Selects the filter and the minimum number of instances of a FilterTree by cross-validation, then builds
+ * the tree with the best setting on all the data. The folds are built in parallel from one shuffled copy of
+ * the data, with the training rows of a fold given as row indices. For every fold and filter only the tree
+ * with the smallest -M of the grid is built: growing depth-first, the tree for a larger -M is the same tree
+ * with the nodes of at most that many instances turned into leaves, so each test instance is filtered once
+ * down its path and scored for all -M values from the class counts of the nodes on the path. Trees grown
+ * best-first, pruned on held-out rows or with same-class splits collapsed are not nested across -M, so
+ * for those every -M gets its own tree.
+ */
+public class FilterTreeGridSearch extends RandomizableClassifier {
+
+    /**For serialization**/
+    private static final long serialVersionUID = 3953626547301548005L;
+
+    /**The tree whose other options are used for every setting**/
+    protected FilterTree m_Tree = new FilterTree();
+
+    /**The filters to try**/
+    protected Filter[] m_Filters = {new AllFilter()};
+
+    /**The minimum numbers of instances to try, separated by commas**/
+    protected String m_MinInstancesGrid = "1,2,5,10,20";
+
+    /**The number of folds**/
+    protected int m_NumFolds = 10;
+
+    /**The number of folds built at the same time**/
+    protected int m_NumExecutionSlots = 1;
+
+    /**The cross-validated error rate of each setting, indexed by filter and minimum number of instances**/
+    protected double[][] m_ErrorRates;
+
+    /**The minimum numbers of instances that were tried, in ascending order**/
+    protected double[] m_MinInstancesValues;
+
+    /**The tree built with the best setting on all the data**/
+    protected FilterTree m_BestTree;
+
+    @OptionMetadata(
+            displayName = "tree",
+            description = "The FilterTree whose other options are used for every setting (default = FilterTree).",
+            commandLineParamName = "W", commandLineParamSynopsis = "-W <FilterTree specification>",
+            displayOrder = 1)
+    public FilterTree getTree() {
+        return m_Tree;
+    }
+
+    public void setTree(FilterTree tree) {
+        this.m_Tree = tree;
+    }
+
+    @OptionMetadata(
+            displayName = "filters",
+            description = "A filter to try, can be given more than once (default = AllFilter).",
+            commandLineParamName = "F", commandLineParamSynopsis = "-F <filter specification>",
+            displayOrder = 2)
+    public Filter[] getFilters() {
+        return m_Filters;
+    }
+
+    public void setFilters(Filter[] filters) {
+        this.m_Filters = filters;
+    }
+
+    @OptionMetadata(
+            displayName = "minInstancesGrid",
+            description = "The minimum numbers of instances required for splitting to try, separated by commas (default = 1,2,5,10,20).",
+            commandLineParamName = "M-grid", commandLineParamSynopsis = "-M-grid <list>",
+            displayOrder = 2)
+    public String getMinInstancesGrid() {
+        return m_MinInstancesGrid;
+    }
+
+    public void setMinInstancesGrid(String minInstancesGrid) {
+        this.m_MinInstancesGrid = minInstancesGrid;
+    }
+
+    @OptionMetadata(
+            displayName = "numFolds",
+            description = "The number of cross-validation folds (default = 10).",
+            commandLineParamName = "X", commandLineParamSynopsis = "-X <int>",
+            displayOrder = 2)
+    public int getNumFolds() {
+        return m_NumFolds;
+    }
+
+    public void setNumFolds(int numFolds) {
+        this.m_NumFolds = numFolds;
+    }
+
+    @OptionMetadata(
+            displayName = "numExecutionSlots",
+            description = "The number of folds built at the same time, 0 = number of cores (default = 1).",
+            commandLineParamName = "num-slots", commandLineParamSynopsis = "-num-slots <int>",
+            displayOrder = 3)
+    public int getNumExecutionSlots() {
+        return m_NumExecutionSlots;
+    }
+
+    public void setNumExecutionSlots(int numExecutionSlots) {
+        this.m_NumExecutionSlots = numExecutionSlots;
+    }
+
+    /**
+     * Returns a string describing this classifier
+     *
+     * @return a description of the classifier
+     */
+    public String globalInfo() {
+        return "Class for selecting the filter and minimum number of instances of a FilterTree by cross-validation.";
+    }
+
+    /**
+     * Returns default capabilities of the classifier.
+     *
+     * @return the capabilities of this classifier
+     */
+    public Capabilities getCapabilities() {
+        return m_Tree.getCapabilities();
+    }
+
+    /**
+     * Cross-validates every setting and builds the best one on all the data
+     *
+     * @param instances that are used to build the classifier
+     * @throws Exception if a tree could not be built or the grid is empty
+     */
+    @Override
+    public void buildClassifier(Instances instances) throws Exception {
+
+        m_MinInstancesValues = parseGrid(m_MinInstancesGrid);
+        if (m_Filters.length == 0 || m_MinInstancesValues.length == 0) {
+            throw new IllegalArgumentException("FilterTreeGridSearch: no filters or minimum numbers of instances to try");
+        }
+
+        //Shuffling and stratifying like Evaluation.crossValidateModel, the copy only holds references
+        Instances data = new Instances(instances);
+        data.randomize(new Random(getSeed()));
+        if (data.classAttribute().isNominal()) {
+            data.stratify(m_NumFolds);
+        }
+
+        //Every task builds one tree for a fold and filter and scores its test rows for every -M
+        int numTasks = m_Filters.length * m_NumFolds;
+        double[][][][] distributions = new double[numTasks][][][];
+        if (m_NumExecutionSlots == 1) {
+            for (int task = 0; task < numTasks; task++) {
+                distributions[task] = evaluateFold(data, m_Filters[task / m_NumFolds], task % m_NumFolds);
+            }
+        } else {
+            ForkJoinPool pool = new ForkJoinPool(m_NumExecutionSlots > 0 ? m_NumExecutionSlots : Runtime.getRuntime().availableProcessors());
+            try {
+                ForkJoinTask<?>[] tasks = new ForkJoinTask<?>[numTasks];
+                for (int task = 0; task < numTasks; task++) {
+                    int index = task;
+                    tasks[task] = pool.submit(() -> {
+                        distributions[index] = evaluateFold(data, m_Filters[index / m_NumFolds], index % m_NumFolds);
+                        return null;
+                    });
+                }
+                for (ForkJoinTask<?> task : tasks) {
+                    FilterTree.joinTask(task);
+                }
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+
+        //Recording the predictions of every setting in order, ties go to the first setting of the grid
+        m_ErrorRates = new double[m_Filters.length][m_MinInstancesValues.length];
+        int bestFilter = 0;
+        int bestMinInstances = 0;
+        for (int f = 0; f < m_Filters.length; f++) {
+            for (int m = 0; m < m_MinInstancesValues.length; m++) {
+                Evaluation evaluation = new Evaluation(data);
+                for (int fold = 0; fold < m_NumFolds; fold++) {
+                    Instances test = data.testCV(m_NumFolds, fold);
+                    double[][][] foldDistributions = distributions[f * m_NumFolds + fold];
+                    for (int i = 0; i < test.size(); i++) {
+                        evaluation.evaluateModelOnceAndRecordPrediction(foldDistributions[i][m], test.get(i));
+                    }
+                }
+                m_ErrorRates[f][m] = evaluation.errorRate();
+                if (m_ErrorRates[f][m] < m_ErrorRates[bestFilter][bestMinInstances]) {
+                    bestFilter = f;
+                    bestMinInstances = m;
+                }
+            }
+        }
+
+        m_BestTree = createTree(m_Filters[bestFilter], m_MinInstancesValues[bestMinInstances]);
+        m_BestTree.setNumExecutionSlots(m_Tree.getNumExecutionSlots());
+        m_BestTree.buildClassifier(instances);
+    }
+
+    /**
+     * Builds the tree for one fold and filter and scores the test rows of the fold for every -M of the grid
+     *
+     * @param data the shuffled data
+     * @param filter the filter
+     * @param fold the index of the fold
+     * @return the class distribution of each test row of the fold for each -M
+     * @throws Exception if the tree could not be built
+     */
+    protected double[][][] evaluateFold(Instances data, Filter filter, int fold) throws Exception {
+
+        //The test rows of a fold are consecutive, as in Instances.testCV
+        int numInstances = data.numInstances();
+        int testSize = numInstances / m_NumFolds + (fold < numInstances % m_NumFolds ? 1 : 0);
+        int testFrom = fold * (numInstances / m_NumFolds) + Math.min(fold, numInstances % m_NumFolds);
+        int[] rows = new int[numInstances - testSize];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = i < testFrom ? i : i + testSize;
+        }
+
+        double[][][] distributions = new double[testSize][m_MinInstancesValues.length][];
+        if (m_Tree.getMaxLeaves() > 0 || m_Tree.getTimeBudget() > 0 || m_Tree.getPruneFraction() > 0
+                || m_Tree.getCollapseSameClass()) {
+            //Trees grown best-first or simplified after growing are not nested across -M, so every -M gets its own tree
+            for (int m = 0; m < m_MinInstancesValues.length; m++) {
+                FilterTree tree = createTree(filter, m_MinInstancesValues[m]);
+                tree.buildClassifier(data, null, rows.clone());
+                for (int i = 0; i < testSize; i++) {
+                    distributions[i][m] = tree.distributionForInstance(data.get(testFrom + i));
+                }
+            }
+            return distributions;
+        }
+
+        FilterTree tree = createTree(filter, m_MinInstancesValues[0]);
+        tree.buildClassifier(data, null, rows);
+        for (int i = 0; i < testSize; i++) {
+            List<double[]> path = tree.pathClassCounts(data.get(testFrom + i));
+            int node = 0;
+            for (int m = m_MinInstancesValues.length - 1; m >= 0; m--) {
+                //The tree for this -M stops at the first node that has at most -M instances, deeper for smaller -M
+                while (node < path.size() - 1 && Utils.sum(path.get(node)) > m_MinInstancesValues[m]) {
+                    node++;
+                }
+                distributions[i][m] = FilterForest.normalize(path.get(node).clone());
+            }
+        }
+        return distributions;
+    }
+
+    /**
+     * Copies the template tree with a setting of the grid
+     *
+     * @param filter the filter
+     * @param minInstances the minimum number of instances required for splitting
+     * @return the new tree
+     * @throws Exception if the tree could not be copied
+     */
+    protected FilterTree createTree(Filter filter, double minInstances) throws Exception {
+        FilterTree tree = FilterTree.copyTree(m_Tree);
+        tree.setFilter(Filter.makeCopy(filter));
+        tree.setThreshold(minInstances);
+        tree.setNumExecutionSlots(1);
+        return tree;
+    }
+
+    /**
+     * Parses a list of numbers separated by commas
+     *
+     * @param grid the list
+     * @return the distinct numbers in ascending order
+     */
+    protected static double[] parseGrid(String grid) {
+        return Arrays.stream(grid.split(",")).map(String::trim).filter(value -> !value.isEmpty())
+                .mapToDouble(Double::parseDouble).sorted().distinct().toArray();
+    }
+
+    @Override
+    public double[] distributionForInstance(Instance instance) throws Exception {
+        return m_BestTree.distributionForInstance(instance);
+    }
+
+    @Override
+    public double[][] distributionsForInstances(Instances batch) throws Exception {
+        return m_BestTree.distributionsForInstances(batch);
+    }
+
+    @Override
+    public boolean implementsMoreEfficientBatchPrediction() {
+        return true;
+    }
+
+    /**
+     * Returns the best tree found
+     *
+     * @return the tree built with the best setting on all the data, null if not built yet
+     */
+    public FilterTree getBestTree() {
+        return m_BestTree;
+    }
+
+    /**
+     * Prints the cross-validated error rate of every setting and the best tree
+     *
+     * @return the string representation
+     */
+    public String toString() {
+        if (m_BestTree == null) {
+            return "FilterTreeGridSearch: has not been built yet";
+        }
+        StringBuilder text = new StringBuilder("Cross-validated error rates (").append(m_NumFolds).append(" folds)\n\n");
+        for (int f = 0; f < m_Filters.length; f++) {
+            String filter = Utils.toCommandLine(m_Filters[f]);
+            for (int m = 0; m < m_MinInstancesValues.length; m++) {
+                text.append(String.format("%-40s -M %-8s %.4f%n", filter, Utils.doubleToString(m_MinInstancesValues[m], 4),
+                        m_ErrorRates[f][m]));
+            }
+        }
+        text.append("\nBest: ").append(Utils.toCommandLine(m_BestTree.getFilter())).append(" -M ")
+                .append(Utils.doubleToString(m_BestTree.getThreshold(), 4)).append("\n\n").append(m_BestTree);
+        return text.toString();
+    }
+
+    /**
+     * The main method used for running this classifier from the command-line interface.
+     *
+     * @param options the command-line options
+     */
+    public static void main(String[] options) {
+        runClassifier(new FilterTreeGridSearch(), options);
+    }
+}
@@ -0,0 +1,570 @@
+package weka.classifiers.meta;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.SerializationHelper;
+import weka.core.Utils;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Scoring server for a trained FilterTree, listening on localhost only. Instances are POSTed to /score as
+ * lines of comma-separated attribute values in the order of the training header, the class value may be
+ * left out or given as ?. The response has one line per instance with the class distribution. Requests are
+ * handled on virtual threads where the JVM has them, and concurrent requests are grouped into micro-batches
+ * that are scored with one call to distributionsForInstances: a batch is scored once it holds the maximum
+ * number of instances, or once its first request has waited the maximum wait time. A request whose batch
+ * has not been scored within the request timeout gets status 503. GET /metrics returns histograms of the
+ * request latency, the batch scoring time and the batch size.
+ * <p>
+ * The JDK's HTTP server sends responses without TCP_NODELAY unless sun.net.httpserver.nodelay is true
+ * when its classes are first loaded, and small responses then wait for delayed ACKs, which adds about
+ * 40 ms per request on Linux. main sets the property unless it is given on the command line; a program
+ * that embeds the server should start its JVM with -Dsun.net.httpserver.nodelay=true.
+ */
+public class FilterTreeServer {
+
+    /**The tree that scores the batches**/
+    protected FilterTree m_Tree;
+
+    /**The header of the training data, which instances are parsed against**/
+    protected Instances m_Header;
+
+    /**The port to listen on, 0 = any free port**/
+    protected int m_Port = 8080;
+
+    /**The maximum number of instances in a batch, a single larger request is scored as one batch**/
+    protected int m_MaxBatchSize = 256;
+
+    /**The longest time in microseconds the first request of a batch waits for more requests**/
+    protected long m_MaxWaitMicros = 1000;
+
+    /**The longest time in milliseconds a request waits for its batch to be scored**/
+    protected long m_RequestTimeoutMillis = 10000;
+
+    /**The requests waiting to be batched**/
+    protected final BlockingQueue<ScoringRequest> m_Queue = new LinkedBlockingQueue<>();
+
+    /**The time in microseconds from the arrival of a request until its distributions are ready**/
+    protected final Histogram m_RequestLatency = new Histogram();
+
+    /**The time in microseconds distributionsForInstances takes for a batch**/
+    protected final Histogram m_BatchScoringTime = new Histogram();
+
+    /**The number of instances in a batch**/
+    protected final Histogram m_BatchSize = new Histogram();
+
+    /**The number of requests that could not be parsed or scored**/
+    protected final LongAdder m_Errors = new LongAdder();
+
+    protected HttpServer m_Server;
+
+    protected ExecutorService m_RequestExecutor;
+
+    protected Thread m_Batcher;
+
+    /**
+     * A request waiting to be scored
+     */
+    protected static class ScoringRequest {
+
+        //The instances of the request
+        protected final List<Instance> Instances;
+
+        //When the request arrived, from System.nanoTime
+        protected final long Arrival;
+
+        //Completed with the distributions of the instances once the batch has been scored
+        protected final CompletableFuture<double[][]> Result = new CompletableFuture<>();
+
+        public ScoringRequest(List<Instance> instances, long arrival) {
+            Instances = instances;
+            Arrival = arrival;
+        }
+    }
+
+    /**
+     * Histogram with buckets of powers of two, bucket b counts the values from 2^(b-1) to 2^b - 1
+     */
+    public static class Histogram {
+
+        protected final AtomicLongArray m_Buckets = new AtomicLongArray(64);
+
+        protected final LongAdder m_Count = new LongAdder();
+
+        protected final LongAdder m_Sum = new LongAdder();
+
+        /**
+         * Records a value
+         *
+         * @param value the value, at least 0
+         */
+        public void record(long value) {
+            m_Buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(Math.max(value, 0)));
+            m_Count.increment();
+            m_Sum.add(value);
+        }
+
+        public long getCount() {
+            return m_Count.sum();
+        }
+
+        public double getMean() {
+            long count = m_Count.sum();
+            return count == 0 ? 0 : (double) m_Sum.sum() / count;
+        }
+
+        /**
+         * Returns an upper bound of a percentile, the upper end of the bucket it falls into
+         *
+         * @param percentile the percentile, between 0 and 100
+         * @return the upper bound, 0 if no value has been recorded
+         */
+        public long getPercentile(double percentile) {
+            long count = m_Count.sum();
+            long rank = (long) Math.ceil(count * percentile / 100);
+            long seen = 0;
+            for (int b = 0; b < 64; b++) {
+                seen += m_Buckets.get(b);
+                if (seen >= rank && seen > 0) {
+                    return b == 0 ? 0 : (1L << b) - 1;
+                }
+            }
+            return 0;
+        }
+
+        /**
+         * Prints the summary and the non-empty buckets
+         *
+         * @param name the name of the histogram
+         * @param unit the unit of the values
+         * @return the text
+         */
+        public String toString(String name, String unit) {
+            StringBuilder text = new StringBuilder();
+            text.append(name).append(" (").append(unit).append("): count ").append(getCount())
+                    .append(" mean ").append(Utils.doubleToString(getMean(), 1))
+                    .append(" p50 <= ").append(getPercentile(50)).append(" p90 <= ").append(getPercentile(90))
+                    .append(" p99 <= ").append(getPercentile(99)).append(" p99.9 <= ").append(getPercentile(99.9)).append("\n");
+            for (int b = 0; b < 64; b++) {
+                long bucketCount = m_Buckets.get(b);
+                if (bucketCount > 0) {
+                    text.append("  ").append(b == 0 ? 0 : 1L << (b - 1)).append("-").append(b == 0 ? 0 : (1L << b) - 1)
+                            .append(": ").append(bucketCount).append("\n");
+                }
+            }
+            return text.toString();
+        }
+    }
+
+    /**
+     * Constructs a server for a trained tree
+     *
+     * @param tree the tree, built or loaded
+     */
+    public FilterTreeServer(FilterTree tree) {
+        m_Tree = tree;
+        m_Header = tree.m_Header;
+        if (m_Header == null) {
+            throw new IllegalArgumentException("FilterTree has not been built yet");
+        }
+    }
+
+    /**
+     * Loads a tree saved with writeCompactModel or Java serialization, for example with -d on the command line
+     *
+     * @param file the model file
+     * @return the tree
+     * @throws Exception if the file does not hold a FilterTree
+     */
+    public static FilterTree loadModel(File file) throws Exception {
+        try {
+            return FilterTree.readCompactModel(file);
+        } catch (IOException e) {
+            Object model = SerializationHelper.read(file.getPath());
+            if (!(model instanceof FilterTree)) {
+                throw new IOException(file + " does not hold a FilterTree");
+            }
+            return (FilterTree) model;
+        }
+    }
+
+    public int getPort() {
+        return m_Server != null ? m_Server.getAddress().getPort() : m_Port;
+    }
+
+    public void setPort(int port) {
+        this.m_Port = port;
+    }
+
+    public int getMaxBatchSize() {
+        return m_MaxBatchSize;
+    }
+
+    public void setMaxBatchSize(int maxBatchSize) {
+        this.m_MaxBatchSize = maxBatchSize;
+    }
+
+    public long getMaxWaitMicros() {
+        return m_MaxWaitMicros;
+    }
+
+    public void setMaxWaitMicros(long maxWaitMicros) {
+        this.m_MaxWaitMicros = maxWaitMicros;
+    }
+
+    public long getRequestTimeoutMillis() {
+        return m_RequestTimeoutMillis;
+    }
+
+    public void setRequestTimeoutMillis(long requestTimeoutMillis) {
+        this.m_RequestTimeoutMillis = requestTimeoutMillis;
+    }
+
+    public Histogram getRequestLatency() {
+        return m_RequestLatency;
+    }
+
+    public Histogram getBatchScoringTime() {
+        return m_BatchScoringTime;
+    }
+
+    public Histogram getBatchSize() {
+        return m_BatchSize;
+    }
+
+    /**
+     * Starts listening on the loopback address and starts the thread that scores the batches
+     *
+     * @throws IOException if the port could not be bound
+     */
+    public void start() throws IOException {
+
+        m_Server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), m_Port), 0);
+        m_RequestExecutor = createRequestExecutor();
+        m_Server.setExecutor(m_RequestExecutor);
+        m_Server.createContext("/score", this::handleScore);
+        m_Server.createContext("/metrics", this::handleMetrics);
+
+        m_Batcher = new Thread(this::runBatcher, "FilterTreeServer batcher");
+        m_Batcher.start();
+        m_Server.start();
+    }
+
+    /**
+     * Stops the server, requests still waiting are failed
+     */
+    public void stop() {
+        m_Server.stop(0);
+        m_Batcher.interrupt();
+        m_RequestExecutor.shutdownNow();
+        ScoringRequest request;
+        while ((request = m_Queue.poll()) != null) {
+            request.Result.completeExceptionally(new IllegalStateException("FilterTreeServer stopped"));
+        }
+    }
+
+    /**
+     * Creates the executor that handles the requests: a thread per request, virtual if the JVM has virtual
+     * threads (Java 21 and later), otherwise pooled platform threads
+     *
+     * @return the executor
+     */
+    protected static ExecutorService createRequestExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    /**
+     * Handles POST /score: parses the instances, queues them and waits for their batch to be scored, at most
+     * the request timeout
+     *
+     * @param exchange the HTTP exchange
+     * @throws IOException if the response could not be sent
+     */
+    protected void handleScore(HttpExchange exchange) throws IOException {
+        long arrival = System.nanoTime();
+        try {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                sendResponse(exchange, 405, "Use POST\n");
+                return;
+            }
+
+            List<Instance> instances;
+            try {
+                instances = parseInstances(new BufferedReader(new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8)));
+            } catch (IllegalArgumentException e) {
+                m_Errors.increment();
+                sendResponse(exchange, 400, e.getMessage() + "\n");
+                return;
+            }
+
+            ScoringRequest request = new ScoringRequest(instances, arrival);
+            m_Queue.add(request);
+            double[][] distributions;
+            try {
+                distributions = request.Result.get(m_RequestTimeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                //Cancelling the request, so it is left out if its batch has not been scored yet
+                request.Result.cancel(false);
+                m_Errors.increment();
+                sendResponse(exchange, 503, "Timed out after " + m_RequestTimeoutMillis + " ms waiting for the batch to be scored\n");
+                return;
+            } catch (ExecutionException e) {
+                m_Errors.increment();
+                sendResponse(exchange, 500, e.getCause() + "\n");
+                return;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            m_RequestLatency.record((System.nanoTime() - arrival) / 1000);
+
+            StringBuilder text = new StringBuilder();
+            for (double[] distribution : distributions) {
+                for (int c = 0; c < distribution.length; c++) {
+                    text.append(c == 0 ? "" : ",").append(distribution[c]);
+                }
+                text.append("\n");
+            }
+            sendResponse(exchange, 200, text.toString());
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Handles GET /metrics
+     *
+     * @param exchange the HTTP exchange
+     * @throws IOException if the response could not be sent
+     */
+    protected void handleMetrics(HttpExchange exchange) throws IOException {
+        try {
+            sendResponse(exchange, 200, metricsToString());
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Prints the metrics of the server
+     *
+     * @return the text
+     */
+    public String metricsToString() {
+        return m_RequestLatency.toString("request latency", "us") + m_BatchScoringTime.toString("batch scoring time", "us")
+                + m_BatchSize.toString("batch size", "instances") + "errors: " + m_Errors.sum() + "\n";
+    }
+
+    protected static void sendResponse(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Parses one instance per non-empty line, with the attribute values in the order of the header. The class
+     * value may be left out, if it is given it is ignored
+     *
+     * @param reader the lines
+     * @return the instances, not yet added to a dataset
+     * @throws IOException if the lines could not be read
+     * @throws IllegalArgumentException if a line has the wrong number of values or a value is not a number
+     */
+    protected List<Instance> parseInstances(BufferedReader reader) throws IOException {
+        List<Instance> instances = new ArrayList<>();
+        int numAttributes = m_Header.numAttributes();
+        int classIndex = m_Header.classIndex();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            String[] fields = line.split(",");
+            boolean withClass = fields.length == numAttributes;
+            if (!withClass && fields.length != numAttributes - 1) {
+                throw new IllegalArgumentException("Expected " + (numAttributes - 1) + " values, got " + fields.length + ": " + line);
+            }
+            double[] values = new double[numAttributes];
+            int field = 0;
+            for (int j = 0; j < numAttributes; j++) {
+                if (j == classIndex) {
+                    values[j] = Utils.missingValue();
+                    field += withClass ? 1 : 0;
+                } else {
+                    values[j] = parseValue(fields[field++].trim());
+                }
+            }
+            instances.add(new DenseInstance(1.0, values));
+        }
+        return instances;
+    }
+
+    protected static double parseValue(String field) {
+        if (field.equals("?")) {
+            return Utils.missingValue();
+        }
+        try {
+            return Double.parseDouble(field);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Not a number: " + field);
+        }
+    }
+
+    /**
+     * Takes requests from the queue and scores them in batches until the thread is interrupted. A batch is
+     * scored once it holds the maximum number of instances or the maximum wait time has passed since its first
+     * request arrived. A request that does not fit into the batch starts the next one. If scoring a batch
+     * throws, the requests of the batch fail and the next batch is scored as usual.
+     */
+    protected void runBatcher() {
+        ScoringRequest next = null;
+        try {
+            while (true) {
+                ScoringRequest first = next != null ? next : m_Queue.take();
+                next = null;
+                List<ScoringRequest> batch = new ArrayList<>();
+                batch.add(first);
+                int size = first.Instances.size();
+                long deadline = first.Arrival + m_MaxWaitMicros * 1000;
+                while (size < m_MaxBatchSize) {
+                    ScoringRequest request = m_Queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (request == null) {
+                        break;
+                    }
+                    if (size + request.Instances.size() > m_MaxBatchSize) {
+                        next = request;
+                        break;
+                    }
+                    batch.add(request);
+                    size += request.Instances.size();
+                }
+                try {
+                    scoreBatch(batch, size);
+                } catch (RuntimeException | Error e) {
+                    for (ScoringRequest request : batch) {
+                        request.Result.completeExceptionally(e);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            if (next != null) {
+                next.Result.completeExceptionally(new IllegalStateException("FilterTreeServer stopped"));
+            }
+        }
+    }
+
+    /**
+     * Scores the instances of a batch of requests with one call to distributionsForInstances and hands every
+     * request its distributions. Requests that have timed out are left out.
+     *
+     * @param batch the requests
+     * @param size the number of instances in the requests
+     */
+    protected void scoreBatch(List<ScoringRequest> batch, int size) {
+        batch.removeIf(request -> request.Result.isDone());
+        if (batch.isEmpty()) {
+            return;
+        }
+        Instances instances = new Instances(m_Header, size);
+        for (ScoringRequest request : batch) {
+            for (Instance instance : request.Instances) {
+                instances.add(instance);
+            }
+        }
+        size = instances.numInstances();
+
+        double[][] distributions;
+        long start = System.nanoTime();
+        try {
+            distributions = m_Tree.distributionsForInstances(instances);
+        } catch (Exception e) {
+            for (ScoringRequest request : batch) {
+                request.Result.completeExceptionally(e);
+            }
+            return;
+        }
+        m_BatchScoringTime.record((System.nanoTime() - start) / 1000);
+        m_BatchSize.record(size);
+
+        int offset = 0;
+        for (ScoringRequest request : batch) {
+            double[][] result = new double[request.Instances.size()][];
+            System.arraycopy(distributions, offset, result, 0, result.length);
+            offset += result.length;
+            request.Result.complete(result);
+        }
+    }
+
+    /**
+     * Runs the server until the JVM is stopped. Options:
+     * -l model file (compact or serialized FilterTree), -port port (default 8080),
+     * -max-batch maximum batch size (default 256), -max-wait maximum wait in microseconds (default 1000),
+     * -timeout request timeout in milliseconds (default 10000)
+     *
+     * @param args the command-line options
+     */
+    public static void main(String[] args) {
+        //Read once, when the HTTP server classes are loaded, so it is set before the server is created
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+        try {
+            String modelFile = Utils.getOption('l', args);
+            if (modelFile.isEmpty()) {
+                throw new IllegalArgumentException("No model file given with -l");
+            }
+            FilterTreeServer server = new FilterTreeServer(loadModel(new File(modelFile)));
+            String port = Utils.getOption("port", args);
+            if (!port.isEmpty()) {
+                server.setPort(Integer.parseInt(port));
+            }
+            String maxBatch = Utils.getOption("max-batch", args);
+            if (!maxBatch.isEmpty()) {
+                server.setMaxBatchSize(Integer.parseInt(maxBatch));
+            }
+            String maxWait = Utils.getOption("max-wait", args);
+            if (!maxWait.isEmpty()) {
+                server.setMaxWaitMicros(Long.parseLong(maxWait));
+            }
+            String timeout = Utils.getOption("timeout", args);
+            if (!timeout.isEmpty()) {
+                server.setRequestTimeoutMillis(Long.parseLong(timeout));
+            }
+            Utils.checkForRemainingOptions(args);
+            server.start();
+            System.err.println("FilterTreeServer listening on http://localhost:" + server.getPort() + "/score");
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+}
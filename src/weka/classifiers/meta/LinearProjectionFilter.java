@@ -0,0 +1,211 @@
+package weka.classifiers.meta;
+
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.filters.Filter;
+import weka.filters.StreamableFilter;
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Filter that outputs a single numeric attribute computed as an affine function of the input attributes.
+ * Missing input values are replaced by constants first. A fitted filter whose output attribute is such a
+ * function, like the attributes of PrincipalComponents or RandomProjection, can be reduced to this filter
+ * by probing it, which keeps only the weights instead of the whole fitted filter.
+ */
+public class LinearProjectionFilter extends Filter implements StreamableFilter {
+
+    /**For serialization**/
+    private static final long serialVersionUID = -3959869422251604465L;
+
+    /**The number of random instances used to check that a probed filter is affine**/
+    protected static final int NUM_CHECKS = 8;
+
+    /**The weight of each input attribute, 0 for the class attribute**/
+    protected double[] m_Weights;
+
+    /**The constant term**/
+    protected double m_Bias;
+
+    /**The value used for each input attribute when it is missing, NaN if the output is then missing**/
+    protected double[] m_MissingValues;
+
+    /**The name of the output attribute**/
+    protected String m_AttributeName;
+
+    /**
+     * Constructs a LinearProjectionFilter object
+     *
+     * @param weights the weight of each input attribute
+     * @param bias the constant term
+     * @param missingValues the value used for each input attribute when it is missing
+     * @param attributeName the name of the output attribute
+     */
+    public LinearProjectionFilter(double[] weights, double bias, double[] missingValues, String attributeName) {
+        m_Weights = weights;
+        m_Bias = bias;
+        m_MissingValues = missingValues;
+        m_AttributeName = attributeName;
+    }
+
+    /**
+     * Returns a string describing this filter
+     *
+     * @return a description of the filter
+     */
+    public String globalInfo() {
+        return "Outputs one attribute that is an affine function of the input attributes.";
+    }
+
+    public double[] getWeights() {
+        return m_Weights;
+    }
+
+    public double getBias() {
+        return m_Bias;
+    }
+
+    public double[] getMissingValues() {
+        return m_MissingValues;
+    }
+
+    public String getAttributeName() {
+        return m_AttributeName;
+    }
+
+    @Override
+    public boolean setInputFormat(Instances instanceInfo) throws Exception {
+        super.setInputFormat(instanceInfo);
+        ArrayList<Attribute> attributes = new ArrayList<>(1);
+        attributes.add(new Attribute(m_AttributeName));
+        setOutputFormat(new Instances(instanceInfo.relationName(), attributes, 0));
+        return true;
+    }
+
+    @Override
+    public boolean input(Instance instance) throws Exception {
+        if (getInputFormat() == null) {
+            throw new IllegalStateException("No input instance format defined");
+        }
+        if (m_NewBatch) {
+            resetQueue();
+            m_NewBatch = false;
+        }
+        push(new DenseInstance(instance.weight(), new double[]{project(instance)}), false);
+        return true;
+    }
+
+    /**
+     * Computes the output value for an instance
+     *
+     * @param instance the instance, with the input format of the filter
+     * @return the value of the output attribute
+     */
+    public double project(Instance instance) {
+        double value = m_Bias;
+        for (int j = 0; j < m_Weights.length; j++) {
+            if (m_Weights[j] != 0) {
+                double x = instance.value(j);
+                value += m_Weights[j] * (Double.isNaN(x) ? m_MissingValues[j] : x);
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Reduces one output attribute of a fitted filter to a LinearProjectionFilter. The weights are found
+     * by filtering unit instances and then checked on random instances, so the reduced filter gives the
+     * same values up to rounding.
+     *
+     * @param filter the fitted filter
+     * @param inputFormat the input format of the filter, with only numeric attributes besides the class
+     * @param attIndex the index of the attribute in the output of the filter
+     * @return the reduced filter with its input format set, or null if the attribute is not an affine function of the input
+     * @throws Exception if the filter could not be applied
+     */
+    public static LinearProjectionFilter fromFilter(Filter filter, Instances inputFormat, int attIndex) throws Exception {
+
+        Instances header = new Instances(inputFormat, 0);
+        int numAttributes = header.numAttributes();
+        for (int j = 0; j < numAttributes; j++) {
+            if (j != header.classIndex() && !header.attribute(j).isNumeric()) {
+                return null;
+            }
+        }
+
+        double[] values = new double[numAttributes];
+        double bias = probe(filter, header, values, attIndex);
+        double[] weights = new double[numAttributes];
+        double[] missingValues = new double[numAttributes];
+        if (Double.isNaN(bias)) {
+            return null;
+        }
+        for (int j = 0; j < numAttributes; j++) {
+            if (j == header.classIndex()) {
+                continue;
+            }
+            values[j] = 1;
+            weights[j] = probe(filter, header, values, attIndex) - bias;
+            values[j] = Double.NaN;
+            double missing = probe(filter, header, values, attIndex);
+            values[j] = 0;
+            if (Double.isNaN(weights[j])) {
+                return null;
+            }
+            if (Double.isNaN(missing)) {
+                missingValues[j] = Double.NaN;
+            } else if (weights[j] != 0) {
+                missingValues[j] = (missing - bias) / weights[j];
+            } else if (missing != bias) {
+                return null;
+            }
+        }
+
+        LinearProjectionFilter linear = new LinearProjectionFilter(weights, bias, missingValues,
+                filter.getOutputFormat().attribute(attIndex).name());
+        linear.setInputFormat(header);
+
+        //Checking the reduced filter on random instances, some with missing values
+        Random random = new Random(numAttributes);
+        for (int k = 0; k < NUM_CHECKS; k++) {
+            double scale = 1;
+            for (int j = 0; j < numAttributes; j++) {
+                values[j] = j == header.classIndex() || (k % 2 == 1 && random.nextInt(4) == 0)
+                        ? Double.NaN : random.nextGaussian() * 100;
+                if (!Double.isNaN(values[j])) {
+                    scale += Math.abs(weights[j] * values[j]);
+                }
+            }
+            double expected = probe(filter, header, values, attIndex);
+            Instance check = new DenseInstance(1.0, values.clone());
+            check.setDataset(header);
+            double actual = linear.project(check);
+            if (Double.isNaN(expected) != Double.isNaN(actual)
+                    || Math.abs(expected - actual) > 1e-9 * (scale + Math.abs(bias))) {
+                return null;
+            }
+        }
+        return linear;
+    }
+
+    /**
+     * Filters one instance with the given values
+     *
+     * @param filter the fitted filter
+     * @param header the input format of the filter
+     * @param values the values of the instance, copied
+     * @param attIndex the index of the attribute in the output of the filter
+     * @return the value of the attribute in the filtered instance
+     * @throws Exception if the instance could not be filtered
+     */
+    protected static double probe(Filter filter, Instances header, double[] values, int attIndex) throws Exception {
+        Instance instance = new DenseInstance(1.0, values.clone());
+        instance.setDataset(header);
+        instance.setClassMissing();
+        filter.input(instance);
+        filter.batchFinished();
+        return filter.output().value(attIndex);
+    }
+}
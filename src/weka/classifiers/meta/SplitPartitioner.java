@@ -0,0 +1,77 @@
+package weka.classifiers.meta;
+
+/**
+ * Partitions the rows of a scoring batch at a split node. The rows whose split attribute value is below the
+ * split value are moved to the front, keeping their order, and the others follow them. The scalar version
+ * here is written without a branch on the comparison, so it does not suffer from mispredictions when rows
+ * go either way at random. A version using the Vector API is used where the JVM has the incubator module.
+ */
+public class SplitPartitioner {
+
+    /**The name of the partitioner that uses the Vector API, compiled separately for JDK 17 and later**/
+    protected static final String VECTOR_PARTITIONER = "weka.classifiers.meta.VectorSplitPartitioner";
+
+    /**
+     * Creates the fastest partitioner available on this JVM
+     *
+     * @return the Vector API partitioner if its class and the jdk.incubator.vector module are available, the scalar one otherwise
+     */
+    public static SplitPartitioner create() {
+        try {
+            return (SplitPartitioner) Class.forName(VECTOR_PARTITIONER).getDeclaredConstructor().newInstance();
+        } catch (Exception | LinkageError e) {
+            return new SplitPartitioner();
+        }
+    }
+
+    /**
+     * Partitions a range of rows
+     *
+     * @param rows the row indices, partitioned in place
+     * @param values the split attribute values, aligned with rows and moved with them
+     * @param from the first position of the range
+     * @param to the position after the last one
+     * @param splitValue the split value, rows with a smaller value go left
+     * @param scratchRows scratch space for the rows going right, only the range is used
+     * @param scratchValues scratch space for their values, only the range is used
+     * @return the position of the first row going right
+     */
+    public int partition(int[] rows, double[] values, int from, int to, double splitValue, int[] scratchRows, double[] scratchValues) {
+        int left = partitionRange(rows, values, from, to, splitValue, scratchRows, scratchValues, from, from);
+        int right = to - left;
+        System.arraycopy(scratchRows, from, rows, left, right);
+        System.arraycopy(scratchValues, from, values, left, right);
+        return left;
+    }
+
+    /**
+     * Partitions a range of rows without branching on the comparison: every row is written to both sides
+     * and only the position of the side it belongs to advances
+     *
+     * @param rows the row indices
+     * @param values the split attribute values
+     * @param from the first position of the range
+     * @param to the position after the last one
+     * @param splitValue the split value
+     * @param scratchRows scratch space for the rows going right
+     * @param scratchValues scratch space for their values
+     * @param left the position of the next row going left, at most from
+     * @param right the position of the next row going right in the scratch space
+     * @return the position of the next row going left, the rows going right have been written from the given position on
+     */
+    protected static int partitionRange(int[] rows, double[] values, int from, int to, double splitValue,
+                                        int[] scratchRows, double[] scratchValues, int left, int right) {
+        for (int i = from; i < to; i++) {
+            int row = rows[i];
+            double value = values[i];
+            int goesLeft = value < splitValue ? 1 : 0;
+            rows[left] = row;
+            values[left] = value;
+            scratchRows[right] = row;
+            scratchValues[right] = value;
+            left += goesLeft;
+            right += 1 - goesLeft;
+        }
+        return left;
+    }
+}
@@ -0,0 +1,68 @@
+package weka.classifiers.meta;
+
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instances;
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Generates numeric datasets for the benchmarks and tests. Each class shifts the mean of every attribute whose
+ * index is congruent to it modulo the number of classes, so the classes overlap but can be told apart by a tree.
+ */
+public class SyntheticData {
+
+    /**
+     * Creates a dataset with numeric attributes and a nominal class as the last attribute
+     *
+     * @param numInstances the number of instances
+     * @param numAttributes the number of numeric attributes
+     * @param numClasses the number of classes
+     * @param seed the seed for the random number generator
+     * @return the dataset, with the class index set
+     */
+    public static Instances create(int numInstances, int numAttributes, int numClasses, long seed) {
+        ArrayList<Attribute> attributes = new ArrayList<>(numAttributes + 1);
+        for (int j = 0; j < numAttributes; j++) {
+            attributes.add(new Attribute("a" + j));
+        }
+        ArrayList<String> classValues = new ArrayList<>(numClasses);
+        for (int c = 0; c < numClasses; c++) {
+            classValues.add("c" + c);
+        }
+        attributes.add(new Attribute("class", classValues));
+
+        Instances data = new Instances("synthetic", attributes, numInstances);
+        data.setClassIndex(numAttributes);
+        Random random = new Random(seed);
+        for (int i = 0; i < numInstances; i++) {
+            double[] values = new double[numAttributes + 1];
+            int c = random.nextInt(numClasses);
+            for (int j = 0; j < numAttributes; j++) {
+                values[j] = random.nextGaussian() + (j % numClasses == c ? 1.5 : 0);
+            }
+            values[numAttributes] = c;
+            data.add(new DenseInstance(1.0, values));
+        }
+        return data;
+    }
+
+    /**
+     * Rounds the attribute values of a dataset to multiples of a step, so that many instances share values
+     * and lie exactly on either side of the split values of a tree
+     *
+     * @param data the dataset, changed in place
+     * @param step the step
+     * @return the dataset
+     */
+    public static Instances round(Instances data, double step) {
+        for (int i = 0; i < data.numInstances(); i++) {
+            for (int j = 0; j < data.numAttributes(); j++) {
+                if (j != data.classIndex()) {
+                    data.instance(i).setValue(j, Math.round(data.instance(i).value(j) / step) * step);
+                }
+            }
+        }
+        return data;
+    }
+}
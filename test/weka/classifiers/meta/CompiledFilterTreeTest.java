@@ -0,0 +1,92 @@
+package weka.classifiers.meta;
+
+import org.junit.jupiter.api.Test;
+import weka.classifiers.AbstractClassifier;
+import weka.classifiers.Classifier;
+import weka.core.Utils;
+import weka.filters.Filter;
+import weka.filters.MultiFilter;
+import weka.filters.unsupervised.attribute.RandomProjection;
+import weka.filters.unsupervised.attribute.Standardize;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static weka.classifiers.meta.PredictionAssertions.assertSamePredictions;
+
+/**
+ * Compiles trained trees into classes and checks the compiled classifiers against the trees, including
+ * trees whose oblique splits are compiled into dot products, trees too large to be compiled, which fall back to walking the flattened tree, classifiers trained with
+ * buildClassifier, and deserialized classifiers, which generate their class again
+ */
+public class CompiledFilterTreeTest {
+
+    @Test
+    public void compiledTree() throws Exception {
+        FilterTree tree = trainTree();
+        CompiledFilterTree compiled = CompiledFilterTree.compile(tree);
+
+        assertFalse(compiled.m_Generated instanceof CompiledFilterTree.InterpretedTree);
+        checkPredictions(tree, compiled);
+    }
+
+    @Test
+    public void compiledObliqueTree() throws Exception {
+        MultiFilter filter = new MultiFilter();
+        filter.setFilters(new Filter[]{new Standardize(), new RandomProjection()});
+        FilterTree tree = new FilterTree();
+        tree.setFilter(filter);
+        tree.setObliqueSplits(true);
+        tree.buildClassifier(SyntheticData.create(2000, 6, 3, 1));
+        CompiledFilterTree compiled = CompiledFilterTree.compile(tree);
+
+        assertFalse(compiled.m_Generated instanceof CompiledFilterTree.InterpretedTree);
+        for (boolean inlined : compiled.m_Generated.m_Inlined) {
+            assertTrue(inlined, "a filter was not compiled into dot products");
+        }
+        checkPredictions(tree, compiled);
+    }
+
+    @Test
+    public void treeTooLargeToCompile() throws Exception {
+        FilterTree tree = trainTree();
+        CompiledFilterTree compiled = CompiledFilterTree.compile(tree, 100);
+
+        assertTrue(compiled.m_Generated instanceof CompiledFilterTree.InterpretedTree);
+        checkPredictions(tree, compiled);
+    }
+
+    @Test
+    public void buildClassifier() throws Exception {
+        FilterTree template = new FilterTree();
+        template.setOptions(Utils.splitOptions("-M 5 -F weka.filters.unsupervised.attribute.RandomProjection"));
+        CompiledFilterTree compiled = new CompiledFilterTree();
+        compiled.setOptions(new String[]{"-W", Utils.toCommandLine(template)});
+        compiled.buildClassifier(SyntheticData.create(2000, 6, 3, 1));
+
+        FilterTree tree = FilterTree.copyTree(template);
+        tree.buildClassifier(SyntheticData.create(2000, 6, 3, 1));
+        assertEquals(tree.toString(), compiled.m_TrainedTree.toString());
+        checkPredictions(tree, compiled);
+    }
+
+    @Test
+    public void deserialized() throws Exception {
+        FilterTree tree = trainTree();
+        Classifier copy = AbstractClassifier.makeCopy(CompiledFilterTree.compile(tree));
+
+        assertTrue(copy instanceof CompiledFilterTree);
+        checkPredictions(tree, (CompiledFilterTree) copy);
+    }
+
+    protected FilterTree trainTree() throws Exception {
+        FilterTree tree = new FilterTree();
+        tree.setFilter(new RandomProjection());
+        tree.buildClassifier(SyntheticData.create(2000, 6, 3, 1));
+        return tree;
+    }
+
+    protected void checkPredictions(FilterTree tree, CompiledFilterTree compiled) throws Exception {
+        assertSamePredictions(tree, compiled, SyntheticData.create(1000, 6, 3, 2));
+    }
+}
@@ -0,0 +1,60 @@
+package weka.classifiers.meta;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import weka.core.Instances;
+import weka.core.converters.ArffSaver;
+import weka.filters.unsupervised.attribute.RandomProjection;
+import java.io.File;
+import java.nio.file.Path;
+
+import static weka.classifiers.meta.PredictionAssertions.assertSamePredictions;
+
+/**
+ * Builds forests from the same data in different ways and checks that they predict the same
+ */
+public class FilterForestTest {
+
+    @TempDir
+    protected Path m_TempDir;
+
+    @Test
+    public void executionSlots() throws Exception {
+        Instances train = SyntheticData.create(2000, 6, 3, 1);
+        FilterForest sequential = newForest(1);
+        sequential.buildClassifier(train);
+        FilterForest parallel = newForest(3);
+        parallel.buildClassifier(train);
+
+        assertSamePredictions(sequential, parallel, SyntheticData.create(1000, 6, 3, 2));
+    }
+
+    @Test
+    public void spillFile() throws Exception {
+        Instances train = SyntheticData.create(2000, 6, 3, 1);
+        FilterForest inMemory = newForest(1);
+        inMemory.buildClassifier(train);
+
+        File arff = m_TempDir.resolve("train.arff").toFile();
+        ArffSaver saver = new ArffSaver();
+        saver.setInstances(train);
+        saver.setFile(arff);
+        saver.writeBatch();
+        FilterForest outOfCore = newForest(1);
+        try (ColumnarSpillFile data = ColumnarSpillFile.create(arff, null, -1)) {
+            outOfCore.buildClassifier(data);
+        }
+
+        assertSamePredictions(inMemory, outOfCore, SyntheticData.create(1000, 6, 3, 2));
+    }
+
+    protected FilterForest newForest(int numExecutionSlots) {
+        FilterTree tree = new FilterTree();
+        tree.setFilter(new RandomProjection());
+        FilterForest forest = new FilterForest();
+        forest.setTree(tree);
+        forest.setNumTrees(5);
+        forest.setNumExecutionSlots(numExecutionSlots);
+        return forest;
+    }
+}
@@ -0,0 +1,113 @@
+package weka.classifiers.meta;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import weka.core.Instances;
+import weka.core.SerializationHelper;
+import weka.core.Utils;
+import weka.filters.AllFilter;
+import weka.filters.Filter;
+import weka.filters.MultiFilter;
+import weka.filters.unsupervised.attribute.PrincipalComponents;
+import weka.filters.unsupervised.attribute.RandomProjection;
+import weka.filters.unsupervised.attribute.Standardize;
+import java.io.File;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static weka.classifiers.meta.PredictionAssertions.assertSamePredictions;
+
+/**
+ * Saves trees with writeCompactModel, loads them with readCompactModel and checks that the loaded tree makes
+ * exactly the same predictions, one at a time and as a batch. The attribute values are rounded, so the
+ * training instances lie right next to the split values, where any difference in the filtered values of
+ * the loaded tree changes predictions.
+ */
+public class FilterTreeCompactModelTest {
+
+    @TempDir
+    protected Path m_TempDir;
+
+    @Test
+    public void allFilter() throws Exception {
+        checkRoundTrip(new AllFilter(), "");
+    }
+
+    @Test
+    public void randomProjection() throws Exception {
+        checkRoundTrip(new RandomProjection(), "");
+    }
+
+    @Test
+    public void principalComponents() throws Exception {
+        checkRoundTrip(new PrincipalComponents(), "");
+    }
+
+    @Test
+    public void standardizedRandomProjection() throws Exception {
+        checkRoundTrip(standardizedRandomProjectionFilter(), "");
+    }
+
+    @Test
+    public void standardizedRandomProjectionOblique() throws Exception {
+        checkRoundTrip(standardizedRandomProjectionFilter(), "-O");
+    }
+
+    @Test
+    public void principalComponentsInherited() throws Exception {
+        checkRoundTrip(new PrincipalComponents(), "-I 100 -J inherit");
+    }
+
+    @Test
+    public void randomProjectionPruned() throws Exception {
+        checkRoundTrip(new RandomProjection(), "-P 0.2");
+    }
+
+    @Test
+    public void smallerThanSerialized() throws Exception {
+        for (Filter filter : new Filter[]{new RandomProjection(), standardizedRandomProjectionFilter()}) {
+            FilterTree tree = new FilterTree();
+            tree.setFilter(filter);
+            tree.buildClassifier(SyntheticData.create(5000, 6, 3, 1));
+
+            File compact = m_TempDir.resolve("tree.ftc").toFile();
+            File serialized = m_TempDir.resolve("tree.model").toFile();
+            tree.writeCompactModel(compact);
+            SerializationHelper.write(serialized.getPath(), tree);
+            assertTrue(compact.length() < serialized.length(), Utils.toCommandLine(filter) + ": compact model "
+                    + compact.length() + " bytes, serialized " + serialized.length() + " bytes");
+        }
+    }
+
+    protected static Filter standardizedRandomProjectionFilter() {
+        MultiFilter filter = new MultiFilter();
+        filter.setFilters(new Filter[]{new Standardize(), new RandomProjection()});
+        return filter;
+    }
+
+    /**
+     * Builds a tree, saves and loads it, and compares the predictions of both trees on the training data and
+     * on a test set
+     *
+     * @param filter the filter of the tree
+     * @param options the other options of the tree
+     * @throws Exception if the tree could not be built, saved or loaded
+     */
+    protected void checkRoundTrip(Filter filter, String options) throws Exception {
+        FilterTree tree = new FilterTree();
+        tree.setOptions(Utils.splitOptions(options));
+        tree.setFilter(filter);
+        Instances train = SyntheticData.round(SyntheticData.create(5000, 6, 3, 1), 0.5);
+        tree.buildClassifier(train);
+        Instances test = new Instances(train);
+        test.addAll(SyntheticData.create(2000, 6, 3, 2));
+
+        File file = m_TempDir.resolve("tree.ftc").toFile();
+        tree.writeCompactModel(file);
+        FilterTree loaded = FilterTree.readCompactModel(file);
+
+        assertEquals(tree.getMeasure("measureNumNodes"), loaded.getMeasure("measureNumNodes"));
+        assertSamePredictions(tree, loaded, test);
+    }
+}
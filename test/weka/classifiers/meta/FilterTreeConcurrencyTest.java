@@ -0,0 +1,109 @@
+package weka.classifiers.meta;
+
+import org.junit.jupiter.api.Test;
+import weka.core.Instances;
+import weka.filters.Filter;
+import weka.filters.MultiFilter;
+import weka.filters.unsupervised.attribute.PrincipalComponents;
+import weka.filters.unsupervised.attribute.RandomProjection;
+import weka.filters.unsupervised.attribute.Standardize;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+
+/**
+ * Scores one tree from many threads at once and checks every prediction against single-threaded scoring
+ */
+public class FilterTreeConcurrencyTest {
+
+    protected static final int NUM_THREADS = 16;
+
+    protected static final int ROUNDS = 5;
+
+    @Test
+    public void randomProjection() throws Exception {
+        checkConcurrentScoring(new RandomProjection());
+    }
+
+    @Test
+    public void principalComponents() throws Exception {
+        checkConcurrentScoring(new PrincipalComponents());
+    }
+
+    @Test
+    public void principalComponentsCopiedPerThread() throws Exception {
+        FilterTree tree = new FilterTree();
+        tree.setFilter(new PrincipalComponents());
+        tree.buildClassifier(SyntheticData.create(2000, 6, 3, 1));
+        CompiledFilterTree compiled = tree.compileToClass();
+
+        FilterTree.FlatTree flat = tree.m_Flat;
+        Filter[] filters = FilterTree.getThreadFilters(flat);
+        Filter[] compiledFilters = compiled.m_Generated.copyFilters();
+        for (int slot = 0; slot < flat.Filters.length; slot++) {
+            assertNotSame(flat.Filters[slot], filters[slot], "slot " + slot);
+            assertNotSame(flat.Filters[slot], compiledFilters[slot], "slot " + slot + " of the compiled tree");
+        }
+    }
+
+    @Test
+    public void standardizedRandomProjection() throws Exception {
+        MultiFilter filter = new MultiFilter();
+        filter.setFilters(new Filter[]{new Standardize(), new RandomProjection()});
+        checkConcurrentScoring(filter);
+    }
+
+    /**
+     * Builds a tree with the filter, scores a test set single-threaded, then scores it again from many
+     * threads that start together, each going through the instances from a different offset
+     *
+     * @param filter the filter of the tree
+     * @throws Exception if the tree could not be built or an instance could not be classified
+     */
+    protected void checkConcurrentScoring(Filter filter) throws Exception {
+        FilterTree tree = new FilterTree();
+        tree.setFilter(filter);
+        tree.buildClassifier(SyntheticData.create(2000, 6, 3, 1));
+        Instances test = SyntheticData.create(1000, 6, 3, 2);
+
+        double[][] expected = new double[test.size()][];
+        for (int i = 0; i < test.size(); i++) {
+            expected[i] = tree.distributionForInstance(test.get(i));
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(NUM_THREADS);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<double[][]>> results = new ArrayList<>();
+            for (int t = 0; t < NUM_THREADS; t++) {
+                int offset = t * test.size() / NUM_THREADS;
+                results.add(pool.submit(() -> {
+                    start.await();
+                    double[][] distributions = new double[test.size()][];
+                    for (int r = 0; r < ROUNDS; r++) {
+                        for (int k = 0; k < test.size(); k++) {
+                            int i = (offset + k) % test.size();
+                            distributions[i] = tree.distributionForInstance(test.get(i));
+                        }
+                    }
+                    return distributions;
+                }));
+            }
+            start.countDown();
+            for (Future<double[][]> result : results) {
+                double[][] distributions = result.get();
+                for (int i = 0; i < test.size(); i++) {
+                    assertArrayEquals(expected[i], distributions[i], 0, "instance " + i);
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package weka.classifiers.meta;
+
+import org.junit.jupiter.api.Test;
+import weka.classifiers.Evaluation;
+import weka.core.Instances;
+import weka.core.Utils;
+import weka.filters.AllFilter;
+import weka.filters.Filter;
+import weka.filters.unsupervised.attribute.RandomProjection;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Compares the error rates of the grid search with a cross-validation that builds a tree for every -M
+ */
+public class FilterTreeGridSearchTest {
+
+    protected static final int NUM_FOLDS = 5;
+
+    protected static final String GRID = "1,5,20,60";
+
+    @Test
+    public void defaultTree() throws Exception {
+        checkErrorRates("");
+    }
+
+    @Test
+    public void prunedTree() throws Exception {
+        checkErrorRates("-P 0.25");
+    }
+
+    @Test
+    public void collapsedTree() throws Exception {
+        checkErrorRates("-U");
+    }
+
+    /**
+     * Runs the grid search with a template tree and checks every error rate against the cross-validation
+     * of a tree with that filter and -M
+     *
+     * @param options the options of the template tree
+     * @throws Exception if a tree could not be built
+     */
+    protected void checkErrorRates(String options) throws Exception {
+        Instances train = SyntheticData.create(1500, 6, 3, 1);
+        FilterTree template = new FilterTree();
+        template.setOptions(Utils.splitOptions(options));
+        Filter[] filters = {new AllFilter(), new RandomProjection()};
+
+        FilterTreeGridSearch search = new FilterTreeGridSearch();
+        search.setTree(template);
+        search.setFilters(filters);
+        search.setMinInstancesGrid(GRID);
+        search.setNumFolds(NUM_FOLDS);
+        search.buildClassifier(train);
+
+        double[] grid = FilterTreeGridSearch.parseGrid(GRID);
+        for (int f = 0; f < filters.length; f++) {
+            for (int m = 0; m < grid.length; m++) {
+                assertEquals(crossValidate(search, train, filters[f], grid[m]), search.m_ErrorRates[f][m], 0,
+                        Utils.toCommandLine(filters[f]) + " -M " + grid[m]);
+            }
+        }
+    }
+
+    /**
+     * Cross-validates a tree on the folds of the grid search, building the tree of every fold from the
+     * training set of the fold
+     *
+     * @param search the grid search, which creates the tree
+     * @param instances the training data
+     * @param filter the filter of the tree
+     * @param minInstances the minimum number of instances of the tree
+     * @return the error rate
+     * @throws Exception if a tree could not be built
+     */
+    protected double crossValidate(FilterTreeGridSearch search, Instances instances, Filter filter, double minInstances) throws Exception {
+        Instances data = new Instances(instances);
+        data.randomize(new Random(search.getSeed()));
+        data.stratify(NUM_FOLDS);
+        Evaluation evaluation = new Evaluation(data);
+        for (int fold = 0; fold < NUM_FOLDS; fold++) {
+            Instances train = data.trainCV(NUM_FOLDS, fold);
+            FilterTree tree = search.createTree(filter, minInstances);
+            tree.buildClassifier(train, null, FilterTree.allRows(train.numInstances()));
+            Instances test = data.testCV(NUM_FOLDS, fold);
+            for (int i = 0; i < test.size(); i++) {
+                evaluation.evaluateModelOnceAndRecordPrediction(tree.distributionForInstance(test.get(i)), test.get(i));
+            }
+        }
+        return evaluation.errorRate();
+    }
+}
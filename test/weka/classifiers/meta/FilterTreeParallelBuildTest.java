@@ -0,0 +1,62 @@
+package weka.classifiers.meta;
+
+import org.junit.jupiter.api.Test;
+import weka.core.Instances;
+import weka.filters.AllFilter;
+import weka.filters.Filter;
+import weka.filters.unsupervised.attribute.RandomProjection;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static weka.classifiers.meta.PredictionAssertions.assertSamePredictions;
+
+/**
+ * Builds trees with one and with several execution slots, with a parallel cutoff low enough that most
+ * subtrees are built as tasks of their own, and checks that the trees and their predictions are the same
+ */
+public class FilterTreeParallelBuildTest {
+
+    protected static final int PARALLEL_CUTOFF = 50;
+
+    @Test
+    public void allFilter() throws Exception {
+        checkParallelBuild(new AllFilter(), false);
+    }
+
+    @Test
+    public void randomProjection() throws Exception {
+        checkParallelBuild(new RandomProjection(), false);
+    }
+
+    @Test
+    public void randomProjectionParallelAttributes() throws Exception {
+        checkParallelBuild(new RandomProjection(), true);
+    }
+
+    /**
+     * Builds a tree with one execution slot and one with four, and compares the trees and their
+     * predictions, one at a time and as a batch
+     *
+     * @param filter the filter of the trees
+     * @param parallelAttributes whether the attributes of a node are also evaluated in parallel
+     * @throws Exception if a tree could not be built
+     */
+    protected void checkParallelBuild(Filter filter, boolean parallelAttributes) throws Exception {
+        Instances train = SyntheticData.create(5000, 6, 3, 1);
+        FilterTree sequential = newTree(filter, 1, parallelAttributes);
+        sequential.buildClassifier(train);
+        FilterTree parallel = newTree(filter, 4, parallelAttributes);
+        parallel.buildClassifier(train);
+
+        assertEquals(sequential.toString(), parallel.toString());
+        assertSamePredictions(sequential, parallel, SyntheticData.create(2000, 6, 3, 2));
+    }
+
+    protected FilterTree newTree(Filter filter, int numExecutionSlots, boolean parallelAttributes) throws Exception {
+        FilterTree tree = new FilterTree();
+        tree.setFilter(Filter.makeCopy(filter));
+        tree.setNumExecutionSlots(numExecutionSlots);
+        tree.setParallelCutoff(PARALLEL_CUTOFF);
+        tree.setParallelAttributeSearch(parallelAttributes);
+        return tree;
+    }
+}
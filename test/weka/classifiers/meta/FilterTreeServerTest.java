@@ -0,0 +1,171 @@
+package weka.classifiers.meta;
+
+import org.junit.jupiter.api.Test;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.filters.unsupervised.attribute.RandomProjection;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Starts the scoring server on a free port and checks its responses against the tree it serves
+ */
+public class FilterTreeServerTest {
+
+    protected static final int NUM_CLIENTS = 16;
+
+    protected static final int REQUESTS_PER_CLIENT = 50;
+
+    @Test
+    public void concurrentRequests() throws Exception {
+        FilterTree tree = new FilterTree();
+        tree.setFilter(new RandomProjection());
+        tree.buildClassifier(SyntheticData.create(2000, 6, 3, 1));
+        Instances test = SyntheticData.create(1000, 6, 3, 2);
+
+        FilterTreeServer server = startServer(tree);
+        ExecutorService pool = Executors.newFixedThreadPool(NUM_CLIENTS);
+        try {
+            HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<?>> results = new ArrayList<>();
+            for (int t = 0; t < NUM_CLIENTS; t++) {
+                int offset = t * test.size() / NUM_CLIENTS;
+                results.add(pool.submit(() -> {
+                    start.await();
+                    for (int r = 0; r < REQUESTS_PER_CLIENT; r++) {
+                        //Requests of one to three instances, so batches mix requests of different sizes
+                        int first = (offset + 3 * r) % (test.size() - 3);
+                        List<Instance> instances = test.subList(first, first + 1 + r % 3);
+                        HttpResponse<String> response = post(client, server, instances);
+                        assertEquals(200, response.statusCode(), response.body());
+                        assertEquals(expectedResponse(tree, instances), response.body());
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> result : results) {
+                result.get();
+            }
+        } finally {
+            pool.shutdown();
+            server.stop();
+        }
+        assertEquals(NUM_CLIENTS * REQUESTS_PER_CLIENT, server.getRequestLatency().getCount());
+    }
+
+    @Test
+    public void batchThatThrows() throws Exception {
+        FilterTree tree = new FilterTree() {
+            protected int m_Calls;
+
+            @Override
+            public double[][] distributionsForInstances(Instances batch) throws Exception {
+                if (m_Calls++ == 0) {
+                    throw new StackOverflowError("first batch");
+                }
+                return super.distributionsForInstances(batch);
+            }
+        };
+        tree.buildClassifier(SyntheticData.create(500, 6, 3, 1));
+        List<Instance> instances = SyntheticData.create(3, 6, 3, 2);
+
+        FilterTreeServer server = startServer(tree);
+        try {
+            HttpClient client = HttpClient.newHttpClient();
+            assertEquals(500, post(client, server, instances).statusCode());
+            HttpResponse<String> response = post(client, server, instances);
+            assertEquals(200, response.statusCode());
+            assertEquals(expectedResponse(tree, instances), response.body());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void requestTimeout() throws Exception {
+        FilterTree tree = new FilterTree() {
+            protected int m_Calls;
+
+            @Override
+            public double[][] distributionsForInstances(Instances batch) throws Exception {
+                if (m_Calls++ == 0) {
+                    Thread.sleep(1000);
+                }
+                return super.distributionsForInstances(batch);
+            }
+        };
+        tree.buildClassifier(SyntheticData.create(500, 6, 3, 1));
+        List<Instance> instances = SyntheticData.create(3, 6, 3, 2);
+
+        FilterTreeServer server = startServer(tree);
+        server.setRequestTimeoutMillis(200);
+        try {
+            HttpClient client = HttpClient.newHttpClient();
+            assertEquals(503, post(client, server, instances).statusCode());
+            server.setRequestTimeoutMillis(10000);
+            HttpResponse<String> response = post(client, server, instances);
+            assertEquals(200, response.statusCode());
+            assertEquals(expectedResponse(tree, instances), response.body());
+        } finally {
+            server.stop();
+        }
+    }
+
+    protected FilterTreeServer startServer(FilterTree tree) throws Exception {
+        FilterTreeServer server = new FilterTreeServer(tree);
+        server.setPort(0);
+        server.start();
+        return server;
+    }
+
+    /**
+     * Posts instances to the server, without their class values
+     *
+     * @param client the HTTP client
+     * @param server the server
+     * @param instances the instances
+     * @return the response
+     * @throws Exception if the request failed
+     */
+    protected HttpResponse<String> post(HttpClient client, FilterTreeServer server, List<Instance> instances) throws Exception {
+        StringBuilder body = new StringBuilder();
+        for (Instance instance : instances) {
+            String separator = "";
+            for (int j = 0; j < instance.numAttributes(); j++) {
+                if (j != instance.classIndex()) {
+                    body.append(separator).append(instance.value(j));
+                    separator = ",";
+                }
+            }
+            body.append("\n");
+        }
+        URI uri = URI.create("http://localhost:" + server.getPort() + "/score");
+        return client.send(HttpRequest.newBuilder(uri).timeout(Duration.ofSeconds(30)).POST(HttpRequest.BodyPublishers.ofString(body.toString())).build(),
+                HttpResponse.BodyHandlers.ofString());
+    }
+
+    protected String expectedResponse(FilterTree tree, List<Instance> instances) throws Exception {
+        StringBuilder text = new StringBuilder();
+        for (Instance instance : instances) {
+            double[] distribution = tree.distributionForInstance(instance);
+            for (int c = 0; c < distribution.length; c++) {
+                text.append(c == 0 ? "" : ",").append(distribution[c]);
+            }
+            text.append("\n");
+        }
+        return text.toString();
+    }
+}
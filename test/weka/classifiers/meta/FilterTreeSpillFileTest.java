@@ -0,0 +1,72 @@
+package weka.classifiers.meta;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import weka.core.Instances;
+import weka.core.converters.ArffSaver;
+import weka.filters.AllFilter;
+import weka.filters.Filter;
+import weka.filters.unsupervised.attribute.PrincipalComponents;
+import weka.filters.unsupervised.attribute.RandomProjection;
+import java.io.File;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static weka.classifiers.meta.PredictionAssertions.assertSamePredictions;
+
+/**
+ * Builds trees out of core from a columnar spill file, with the filtered data of large nodes spilled to
+ * memory-mapped files, and checks them against trees built in memory from the same instances. The attribute
+ * values are multiples of 1/64, so the ARFF file holds them exactly.
+ */
+public class FilterTreeSpillFileTest {
+
+    protected static final int SPILL_THRESHOLD = 500;
+
+    @TempDir
+    protected Path m_TempDir;
+
+    @Test
+    public void allFilter() throws Exception {
+        checkSpilledTree(new AllFilter());
+    }
+
+    @Test
+    public void randomProjection() throws Exception {
+        checkSpilledTree(new RandomProjection());
+    }
+
+    @Test
+    public void principalComponents() throws Exception {
+        checkSpilledTree(new PrincipalComponents());
+    }
+
+    /**
+     * Builds a tree in memory and one from a spill file of the same instances, and compares the trees and
+     * their predictions
+     *
+     * @param filter the filter of the trees
+     * @throws Exception if a tree could not be built
+     */
+    protected void checkSpilledTree(Filter filter) throws Exception {
+        Instances train = SyntheticData.round(SyntheticData.create(20000, 6, 3, 1), 1.0 / 64);
+        FilterTree inMemory = new FilterTree();
+        inMemory.setFilter(Filter.makeCopy(filter));
+        inMemory.buildClassifier(train);
+
+        File arff = m_TempDir.resolve("train.arff").toFile();
+        ArffSaver saver = new ArffSaver();
+        saver.setInstances(train);
+        saver.setFile(arff);
+        saver.writeBatch();
+        FilterTree outOfCore = new FilterTree();
+        outOfCore.setFilter(Filter.makeCopy(filter));
+        outOfCore.setSpillThreshold(SPILL_THRESHOLD);
+        try (ColumnarSpillFile data = ColumnarSpillFile.create(arff, null, -1)) {
+            outOfCore.buildClassifier(data);
+        }
+
+        assertEquals(inMemory.toString(), outOfCore.toString());
+        assertSamePredictions(inMemory, outOfCore, SyntheticData.create(2000, 6, 3, 2));
+    }
+}
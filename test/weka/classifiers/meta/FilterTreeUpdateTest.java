@@ -0,0 +1,155 @@
+package weka.classifiers.meta;
+
+import org.junit.jupiter.api.Test;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.filters.unsupervised.attribute.RandomProjection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static weka.classifiers.meta.PredictionAssertions.assertSamePredictions;
+
+/**
+ * Updates trees with updateClassifier and checks the class counts of the leaves, the measures of the build,
+ * the handling of instances without a dataset and scoring from other threads while the tree is updated
+ */
+public class FilterTreeUpdateTest {
+
+    protected static final int NUM_THREADS = 8;
+
+    @Test
+    public void splitsKeepClassCounts() throws Exception {
+        Instances stream = SyntheticData.create(4000, 6, 3, 3);
+        FilterTree tree = newTree();
+        tree.buildClassifier(new Instances(stream, 0));
+        for (Instance instance : stream) {
+            tree.updateClassifier(instance);
+        }
+
+        assertTrue(tree.countNodes(tree.m_RootNode) > 3, "the tree did not grow");
+        double[] expected = new double[stream.numClasses()];
+        for (Instance instance : stream) {
+            expected[(int) instance.classValue()]++;
+        }
+        assertArrayEquals(expected, tree.subtreeClassCounts(tree.m_RootNode), 1e-6);
+    }
+
+    @Test
+    public void splitsKeepBuildMeasures() throws Exception {
+        //Leaves of at most 300 instances, which split again once they collect more
+        FilterTree tree = newTree();
+        tree.setThreshold(300);
+        tree.buildClassifier(SyntheticData.create(2000, 6, 3, 1));
+        String[] measures = {"measureFilterFitTime", "measureFilterTime", "measureSortTime", "measureSplitSearchTime",
+                "measureCandidatesEvaluated", "measureCandidatesSkipped"};
+        double[] built = new double[measures.length];
+        for (int m = 0; m < measures.length; m++) {
+            built[m] = tree.getMeasure(measures[m]);
+        }
+        int numNodes = tree.countNodes(tree.m_RootNode);
+        for (Instance instance : SyntheticData.create(4000, 6, 3, 3)) {
+            tree.updateClassifier(instance);
+        }
+
+        assertTrue(tree.countNodes(tree.m_RootNode) > numNodes, "no leaf was split");
+        for (int m = 0; m < measures.length; m++) {
+            assertEquals(built[m], tree.getMeasure(measures[m]), measures[m]);
+        }
+    }
+
+    @Test
+    public void instancesWithoutDataset() throws Exception {
+        Instances train = SyntheticData.create(2000, 6, 3, 1);
+        Instances stream = SyntheticData.create(2000, 6, 3, 3);
+        FilterTree withDataset = newTree();
+        withDataset.buildClassifier(train);
+        FilterTree withoutDataset = newTree();
+        withoutDataset.buildClassifier(train);
+        for (Instance instance : stream) {
+            withDataset.updateClassifier(instance);
+            withoutDataset.updateClassifier(new DenseInstance(instance.weight(), instance.toDoubleArray()));
+        }
+
+        assertEquals(withDataset.countNodes(withDataset.m_RootNode), withoutDataset.countNodes(withoutDataset.m_RootNode));
+        assertSamePredictions(withDataset, withoutDataset, SyntheticData.create(500, 6, 3, 2));
+    }
+
+    /**
+     * Scores a test set from several threads while another thread updates the tree. Every prediction made
+     * during the updates must be a whole leaf distribution, and once the updates are done the tree must
+     * predict the same as a tree given the same updates with no threads scoring.
+     *
+     * @throws Exception if the tree could not be built or updated
+     */
+    @Test
+    public void scoringDuringUpdates() throws Exception {
+        Instances train = SyntheticData.create(2000, 6, 3, 1);
+        Instances stream = SyntheticData.create(4000, 6, 3, 3);
+        Instances test = SyntheticData.create(500, 6, 3, 2);
+        FilterTree reference = newTree();
+        reference.buildClassifier(train);
+        for (Instance instance : stream) {
+            reference.updateClassifier(instance);
+        }
+
+        FilterTree tree = newTree();
+        tree.buildClassifier(train);
+        ExecutorService pool = Executors.newFixedThreadPool(NUM_THREADS);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            AtomicBoolean updating = new AtomicBoolean(true);
+            List<Future<Integer>> results = new ArrayList<>();
+            for (int t = 0; t < NUM_THREADS; t++) {
+                int offset = t * test.size() / NUM_THREADS;
+                results.add(pool.submit(() -> {
+                    start.await();
+                    int scored = 0;
+                    for (int k = 0; updating.get() || k < test.size(); k++) {
+                        double[] distribution = tree.distributionForInstance(test.get((offset + k) % test.size()));
+                        assertEquals(test.numClasses(), distribution.length);
+                        double sum = 0;
+                        for (double p : distribution) {
+                            assertTrue(p >= 0 && p <= 1);
+                            sum += p;
+                        }
+                        assertEquals(1, sum, 1e-9);
+                        scored++;
+                    }
+                    return scored;
+                }));
+            }
+            start.countDown();
+            try {
+                for (Instance instance : stream) {
+                    tree.updateClassifier(instance);
+                }
+            } finally {
+                updating.set(false);
+            }
+            for (Future<Integer> result : results) {
+                assertTrue(result.get() > 0);
+            }
+        } finally {
+            pool.shutdown();
+        }
+
+        assertEquals(reference.countNodes(reference.m_RootNode), tree.countNodes(tree.m_RootNode));
+        assertSamePredictions(reference, tree, test);
+    }
+
+    protected FilterTree newTree() {
+        FilterTree tree = new FilterTree();
+        tree.setFilter(new RandomProjection());
+        tree.setGracePeriod(200);
+        return tree;
+    }
+}
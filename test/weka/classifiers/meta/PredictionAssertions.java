@@ -0,0 +1,30 @@
+package weka.classifiers.meta;
+
+import weka.classifiers.AbstractClassifier;
+import weka.core.Instances;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+/**
+ * Compares the predictions of a classifier with those of the classifier it should reproduce
+ */
+public class PredictionAssertions {
+
+    /**
+     * Checks that a classifier predicts exactly the same distributions as the expected classifier, one
+     * instance at a time and as a batch
+     *
+     * @param expected the classifier to reproduce
+     * @param actual the classifier to check
+     * @param test the instances to predict
+     * @throws Exception if an instance could not be classified
+     */
+    public static void assertSamePredictions(AbstractClassifier expected, AbstractClassifier actual, Instances test) throws Exception {
+        double[][] batch = actual.distributionsForInstances(test);
+        for (int i = 0; i < test.size(); i++) {
+            double[] distribution = expected.distributionForInstance(test.get(i));
+            assertArrayEquals(distribution, actual.distributionForInstance(test.get(i)), 0, "instance " + i);
+            assertArrayEquals(distribution, batch[i], 0, "instance " + i + " in the batch");
+        }
+    }
+}